@@ -4,13 +4,39 @@ import android.content.Context
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.antony.muzei.pixiv.provider.backlog.BacklogArtworkDao
+import com.antony.muzei.pixiv.provider.backlog.BacklogArtworkEntity
+import com.antony.muzei.pixiv.provider.blobstore.ArtworkBlobDao
+import com.antony.muzei.pixiv.provider.blobstore.ArtworkBlobEntity
+import com.antony.muzei.pixiv.provider.bookmarks.BookmarkCheckpointDao
+import com.antony.muzei.pixiv.provider.bookmarks.BookmarkCheckpointEntity
+import com.antony.muzei.pixiv.provider.bookmarks.BookmarkMirrorDao
+import com.antony.muzei.pixiv.provider.bookmarks.BookmarkMirrorEntity
+import com.antony.muzei.pixiv.provider.extension.OriginalExtensionDao
+import com.antony.muzei.pixiv.provider.extension.OriginalExtensionEntity
+import com.antony.muzei.pixiv.provider.feedcache.FeedPageDao
+import com.antony.muzei.pixiv.provider.feedcache.FeedPageEntity
+import com.antony.muzei.pixiv.provider.filesize.OversizedArtworkDao
+import com.antony.muzei.pixiv.provider.filesize.OversizedArtworkEntity
 import com.antony.muzei.pixiv.settings.blockArtist.BlockedArtistDao
 import com.antony.muzei.pixiv.settings.blockArtist.BlockArtistEntity
 import com.antony.muzei.pixiv.settings.deleteArtwork.DeletedArtworkIdDao
 import com.antony.muzei.pixiv.settings.deleteArtwork.DeletedArtworkIdEntity
 
 @Database(
-    entities = [DeletedArtworkIdEntity::class, BlockArtistEntity::class], version = 1, exportSchema = false
+    entities = [
+        DeletedArtworkIdEntity::class,
+        BlockArtistEntity::class,
+        BacklogArtworkEntity::class,
+        FeedPageEntity::class,
+        OriginalExtensionEntity::class,
+        OversizedArtworkEntity::class,
+        ArtworkBlobEntity::class,
+        BookmarkCheckpointEntity::class,
+        BookmarkMirrorEntity::class,
+    ], version = 10, exportSchema = false
 )
 abstract class AppDatabase : RoomDatabase() {
     companion object {
@@ -19,6 +45,111 @@ abstract class AppDatabase : RoomDatabase() {
         @Volatile
         private var INSTANCE: AppDatabase? = null
 
+        // Migrations only add or rebuild cache tables, so existing deleted artworks and blocked artists are kept
+        private val MIGRATION_1_2 = object : Migration(1, 2) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `BacklogArtworkEntity` (`token` TEXT NOT NULL, `title` TEXT, " +
+                            "`byline` TEXT, `attribution` TEXT, `persistentUri` TEXT NOT NULL, `webUri` TEXT, " +
+                            "`metadata` TEXT, `addedTime` INTEGER NOT NULL, PRIMARY KEY(`token`))"
+                )
+            }
+        }
+
+        private val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `FeedPageEntity` (`mode` TEXT NOT NULL, `date` TEXT NOT NULL, " +
+                            "`page` INTEGER NOT NULL, `query` TEXT NOT NULL, `json` TEXT NOT NULL, " +
+                            "`expiresTime` INTEGER NOT NULL, PRIMARY KEY(`mode`, `date`, `page`, `query`))"
+                )
+            }
+        }
+
+        private val MIGRATION_3_4 = object : Migration(3, 4) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `OriginalExtensionEntity` (`illustId` INTEGER NOT NULL, " +
+                            "`extension` TEXT NOT NULL, PRIMARY KEY(`illustId`))"
+                )
+            }
+        }
+
+        private val MIGRATION_4_5 = object : Migration(4, 5) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `OversizedArtworkEntity` (`illustId` INTEGER NOT NULL, " +
+                            "`fileSize` INTEGER NOT NULL, PRIMARY KEY(`illustId`))"
+                )
+            }
+        }
+
+        private val MIGRATION_5_6 = object : Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `ArtworkBlobEntity` (`illustId` INTEGER NOT NULL, " +
+                            "`page` INTEGER NOT NULL, `location` TEXT NOT NULL, `hash` TEXT NOT NULL, " +
+                            "`uri` TEXT NOT NULL, `mimeType` TEXT, PRIMARY KEY(`illustId`, `page`, `location`))"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_ArtworkBlobEntity_hash` ON `ArtworkBlobEntity` (`hash`)"
+                )
+            }
+        }
+
+        private val MIGRATION_6_7 = object : Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `ArtworkBlobEntity` ADD COLUMN `volume` TEXT")
+            }
+        }
+
+        private val MIGRATION_7_8 = object : Migration(7, 8) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `BookmarkCheckpointEntity` (`userId` TEXT NOT NULL, " +
+                            "`restrict` TEXT NOT NULL, `maxBookmarkId` INTEGER NOT NULL, " +
+                            "`firstIllustId` INTEGER NOT NULL, `count` INTEGER NOT NULL, " +
+                            "PRIMARY KEY(`userId`, `restrict`, `maxBookmarkId`))"
+                )
+            }
+        }
+
+        // The bookmark index is thrown away rather than migrated, so it is rebuilt along with the mirror
+        private val MIGRATION_8_9 = object : Migration(8, 9) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DROP TABLE IF EXISTS `BookmarkCheckpointEntity`")
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `BookmarkCheckpointEntity` (`userId` TEXT NOT NULL, " +
+                            "`restrict` TEXT NOT NULL, `maxBookmarkId` INTEGER NOT NULL, " +
+                            "`firstIllustId` INTEGER NOT NULL, `count` INTEGER NOT NULL, " +
+                            "`verifiedTime` INTEGER NOT NULL, PRIMARY KEY(`userId`, `restrict`, `maxBookmarkId`))"
+                )
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `BookmarkMirrorEntity` (`userId` TEXT NOT NULL, " +
+                            "`illustId` INTEGER NOT NULL, `restrict` TEXT NOT NULL, " +
+                            "`maxBookmarkId` INTEGER NOT NULL, `json` TEXT NOT NULL, " +
+                            "PRIMARY KEY(`userId`, `illustId`))"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_BookmarkMirrorEntity_userId_restrict_maxBookmarkId` " +
+                            "ON `BookmarkMirrorEntity` (`userId`, `restrict`, `maxBookmarkId`)"
+                )
+            }
+        }
+
+        // Oversized artworks were only recorded by illustId, which can't tell pages or variants apart
+        // They are simply dropped, and found again the next time one is downloaded
+        private val MIGRATION_9_10 = object : Migration(9, 10) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DROP TABLE IF EXISTS `OversizedArtworkEntity`")
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `OversizedArtworkEntity` (`illustId` INTEGER NOT NULL, " +
+                            "`page` INTEGER NOT NULL, `variant` TEXT NOT NULL, `fileSize` INTEGER NOT NULL, " +
+                            "PRIMARY KEY(`illustId`, `page`, `variant`))"
+                )
+            }
+        }
+
         fun getInstance(context: Context): AppDatabase {
             // if the INSTANCE is not null, then return it,
             // if it is, then create the database
@@ -27,7 +158,12 @@ abstract class AppDatabase : RoomDatabase() {
                         context.applicationContext,
                         AppDatabase::class.java,
                         "word_database"
-                    ).build()
+                    )
+                    .addMigrations(
+                        MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5,
+                        MIGRATION_5_6, MIGRATION_6_7, MIGRATION_7_8, MIGRATION_8_9, MIGRATION_9_10
+                    )
+                    .build()
                 INSTANCE = instance
                 // return instance
                 instance
@@ -37,4 +173,11 @@ abstract class AppDatabase : RoomDatabase() {
 
     abstract fun deletedArtworkIdDao(): DeletedArtworkIdDao
     abstract fun blockedArtistDao(): BlockedArtistDao
+    abstract fun backlogArtworkDao(): BacklogArtworkDao
+    abstract fun feedPageDao(): FeedPageDao
+    abstract fun originalExtensionDao(): OriginalExtensionDao
+    abstract fun oversizedArtworkDao(): OversizedArtworkDao
+    abstract fun artworkBlobDao(): ArtworkBlobDao
+    abstract fun bookmarkCheckpointDao(): BookmarkCheckpointDao
+    abstract fun bookmarkMirrorDao(): BookmarkMirrorDao
 }
@@ -23,7 +23,7 @@ import androidx.preference.PreferenceManager
 import com.antony.muzei.pixiv.PixivProviderConst.*
 import com.antony.muzei.pixiv.annotation.IOThread
 import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
-import com.antony.muzei.pixiv.provider.network.PixivOauthService
+import com.antony.muzei.pixiv.provider.feedcache.FeedPageCache
 import com.antony.muzei.pixiv.provider.network.RestClient
 import com.antony.muzei.pixiv.provider.network.moshi.OAuth
 import com.antony.muzei.pixiv.provider.network.moshi.OAuthResponse
@@ -47,7 +47,12 @@ class PixivInstrumentation {
 
         @JvmStatic
         fun updateTokenLocal(context: Context, response: OAuthResponse) {
-            PreferenceManager.getDefaultSharedPreferences(context.applicationContext).edit()
+            val prefs = PreferenceManager.getDefaultSharedPreferences(context.applicationContext)
+            // Cached auth feed pages belong to whoever was logged in before
+            if (prefs.getString("userId", "") != response.user.id) {
+                FeedPageCache.clear(context)
+            }
+            prefs.edit()
                 .apply {
                     putString(PREFERENCE_PIXIV_ACCESS_TOKEN, response.access_token)
                     putString(PREFERENCE_PIXIV_REFRESH_TOKEN, response.refresh_token)
@@ -75,7 +80,7 @@ class PixivInstrumentation {
             )
 
             // Building and executing the network call
-            val service = RestClient.getRetrofitOauthInstance().create(PixivOauthService::class.java)
+            val service = RestClient.getOauthService()
             try {
                 val response = service.postRefreshToken(formBody).execute()
                 if (!response.isSuccessful) {
@@ -100,6 +105,12 @@ class PixivInstrumentation {
      */
     @IOThread
     fun getAccessToken(context: Context): String =
+        getValidAccessToken(context) ?: refreshAccessToken(context)
+
+    /**
+     * Get the stored pixiv access-token if it has not yet expired, without refreshing it
+     */
+    fun getValidAccessToken(context: Context): String? =
         PreferenceManager.getDefaultSharedPreferences(context.applicationContext).let { prefs ->
             prefs.getLong(PREFERENCE_PIXIV_UPDATE_TOKEN_TIMESTAMP, 0L)
                 .takeIf { accessTokenIssueTime ->
@@ -108,7 +119,6 @@ class PixivInstrumentation {
                 ?.let {
                     prefs.getString(PREFERENCE_PIXIV_ACCESS_TOKEN, "")
                 }
-                ?: refreshAccessToken(context)
         }
 
     /**
@@ -135,8 +145,7 @@ class PixivInstrumentation {
                 ?.takeIf { it.isNotEmpty() }
                 ?.also { put("refresh_token", it) }
         }.let { params ->
-            val service =
-                RestClient.getRetrofitOauthInstance().create(PixivOauthService::class.java)
+            val service = RestClient.getOauthService()
             try {
                 val call = service.postRefreshToken(params)
                 val response = call.execute()
@@ -52,13 +52,22 @@ object PixivMuzeiSupervisor {
         start = true
     }
 
+    private val refreshLock = Any()
+
+    // A token that is still valid is read without locking, so callers such as the Muzei binder thread never wait
+    // behind a refresh
+    // Only refreshing is serialized, so concurrent callers with an expired token make a single refresh between them
     @Throws(AccessTokenAcquisitionException::class)
     @IOThread
     fun getAccessToken(): String {
         if (!start) {
             return ""
         }
-        return appInstrumentation.getAccessToken(appContext)
+        appInstrumentation.getValidAccessToken(appContext)?.let { return it }
+        return synchronized(refreshLock) {
+            // Another caller may have refreshed the token while this one was waiting
+            appInstrumentation.getAccessToken(appContext)
+        }
     }
 
     fun broadcastLocal(intent: Intent) {
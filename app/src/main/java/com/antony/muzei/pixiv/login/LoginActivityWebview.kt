@@ -42,6 +42,7 @@ import com.antony.muzei.pixiv.R
 import com.antony.muzei.pixiv.common.PixivMuzeiActivity
 import com.antony.muzei.pixiv.databinding.ActivityLoginWebviewBinding
 import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
+import com.antony.muzei.pixiv.provider.feedcache.FeedPageCache
 import com.antony.muzei.pixiv.provider.network.PixivOauthService
 import com.antony.muzei.pixiv.provider.network.moshi.OAuth
 import kotlinx.coroutines.*
@@ -84,6 +85,8 @@ class LoginActivityWebview : PixivMuzeiActivity(),
                 if (url.scheme.equals("pixiv")) {
                     launch {
                         val oauthResponse = loginNetworkRequest(url)
+                        // Cached auth feed pages belong to whoever was logged in before
+                        FeedPageCache.clear(applicationContext)
 
                         PreferenceManager.getDefaultSharedPreferences(applicationContext)
                             .edit()
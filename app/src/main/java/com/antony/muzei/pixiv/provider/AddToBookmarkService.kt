@@ -27,9 +27,7 @@ import android.widget.Toast
 import androidx.core.app.NotificationCompat
 import com.antony.muzei.pixiv.PixivMuzeiSupervisor
 import com.antony.muzei.pixiv.R
-import com.antony.muzei.pixiv.provider.network.OkHttpSingleton
-import com.antony.muzei.pixiv.provider.network.interceptor.PixivAuthHeaderInterceptor
-import com.antony.muzei.pixiv.provider.network.interceptor.StandardAuthHttpHeaderInterceptor
+import com.antony.muzei.pixiv.provider.network.RestClient
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
@@ -63,10 +61,7 @@ class AddToBookmarkService : Service() {
             CoroutineScope(Dispatchers.Main + SupervisorJob()).launch(Dispatchers.IO) {
                 // in here execute a post request
                 // no need to use the service really
-                val imageHttpClient = OkHttpSingleton.getInstance().newBuilder()
-                    .addInterceptor(PixivAuthHeaderInterceptor())
-                    .addInterceptor(StandardAuthHttpHeaderInterceptor())
-                    .build()
+                val imageHttpClient = RestClient.getAuthClient()
 
                 val formBody = FormBody.Builder()
                     .add("illust_id", intent.getStringExtra("artworkId")!!)
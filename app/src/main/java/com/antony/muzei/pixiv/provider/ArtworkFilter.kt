@@ -0,0 +1,81 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider
+
+import android.util.Log
+
+/*
+ * Runs a set of named predicates over candidate artworks, keeping only those that pass all of them
+ *
+ * Each predicate's evaluation time and pass/fail count is recorded, and before every call to filter()
+ * the predicates are reordered so those that reject the most candidates for the least time run first
+ * A candidate stops being evaluated at its first rejection, so ideally most never reach the slow predicates
+ *
+ * Predicates that have not been measured yet keep the order they were added in, ahead of measured ones
+ * One instance is meant to be kept for a whole worker run, so the measurements carry over between pages
+ */
+class ArtworkFilter<T>(private val name: String) {
+    private class Predicate<T>(val name: String, val test: (T) -> Boolean) {
+        var evaluations = 0L
+        var rejections = 0L
+        var totalNanos = 0L
+
+        // Expected time spent per candidate rejected, which is the order that minimises the total time
+        // The +1 terms keep a predicate that hasn't rejected anything yet from being ranked as infinitely costly
+        val rank: Double
+            get() = if (evaluations == 0L) {
+                0.0
+            } else {
+                (totalNanos.toDouble() / evaluations) / ((rejections + 1.0) / (evaluations + 1.0))
+            }
+    }
+
+    private val predicates = mutableListOf<Predicate<T>>()
+
+    fun add(name: String, test: (T) -> Boolean): ArtworkFilter<T> {
+        predicates.add(Predicate(name, test))
+        return this
+    }
+
+    fun filter(candidates: List<T>): List<T> {
+        // sortBy is stable, so unmeasured predicates stay in the order they were added
+        predicates.sortBy { it.rank }
+        return candidates.filter { candidate ->
+            predicates.all { predicate ->
+                val startTime = System.nanoTime()
+                val passed = predicate.test(candidate)
+                predicate.totalNanos += System.nanoTime() - startTime
+                predicate.evaluations++
+                if (!passed) {
+                    predicate.rejections++
+                }
+                passed
+            }
+        }
+    }
+
+    fun logStatistics(tag: String) {
+        predicates.forEach {
+            val averageMicros = if (it.evaluations == 0L) 0L else it.totalNanos / it.evaluations / 1000
+            Log.d(
+                tag,
+                "$name filter ${it.name}: ${it.evaluations - it.rejections} passed, " +
+                        "${it.rejections} rejected, ${averageMicros}us average"
+            )
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider
+
+// Artworks are handed to Muzei with a token identifying the page of the illust they show
+// The first page keeps the bare illust id, as every token did before later pages were offered, so artwork already
+// in Muzei or the backlog still resolves
+// Later pages are "<illust id>_p<page>", the same suffix Pixiv uses in its image file names
+object ArtworkToken {
+    private const val PAGE_SEPARATOR = "_p"
+
+    fun create(illustId: Int, page: Int): String =
+        if (page == 0) illustId.toString() else "$illustId$PAGE_SEPARATOR$page"
+
+    // Null for a token we didn't create
+    fun getIllustId(token: String): Int? = token.substringBefore(PAGE_SEPARATOR).toIntOrNull()
+
+    fun getPage(token: String): Int = token.substringAfter(PAGE_SEPARATOR, "0").toIntOrNull() ?: 0
+}
@@ -23,6 +23,7 @@ class BlockArtistReceiver : BroadcastReceiver(), CoroutineScope by CoroutineScop
             launch(Dispatchers.IO) {
                 AppDatabase.getInstance(context).blockedArtistDao()
                     .insertBlockedArtistId(listOf(BlockArtistEntity(artistId)))
+                ExcludedIdIndex.addBlockedArtists(listOf(artistId))
             }
         }
     }
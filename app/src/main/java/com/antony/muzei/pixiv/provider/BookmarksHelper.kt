@@ -1,41 +1,51 @@
 package com.antony.muzei.pixiv.provider
 
+import android.content.Context
+import com.antony.muzei.pixiv.provider.feedcache.FeedPageCache
 import com.antony.muzei.pixiv.provider.network.PixivAuthFeedJsonService
 import com.antony.muzei.pixiv.provider.network.RestClient
 import com.antony.muzei.pixiv.provider.network.moshi.Illusts
+import retrofit2.Call
+import retrofit2.awaitResponse
 
-class BookmarksHelper(private val userId: String) {
+class BookmarksHelper(private val context: Context, private val userId: String) {
     private lateinit var illusts: Illusts
-    private val service: PixivAuthFeedJsonService = RestClient.getRetrofitAuthInstance()
-        .create(PixivAuthFeedJsonService::class.java)
-
-    fun getNewPublicBookmarks(maxBookmarkId: String): Illusts {
-        val call = service.getPublicBookmarkOffsetJson(userId, maxBookmarkId)
-        illusts = call.execute().body()!!
-        return illusts
-    }
-
-    fun getNewPrivateIllusts(maxBookmarkId: String): Illusts {
-        val call = service.getPrivateBookmarkOffsetJson(userId, maxBookmarkId)
-        illusts = call.execute().body()!!
-        return illusts
-    }
-
-    fun getNewPublicBookmarks(): Illusts {
-        val call = service.getPublicBookmarkJson(userId)
-        illusts = call.execute().body()!!
-        return illusts
-    }
-
-    fun getNewPrivateIllusts(): Illusts {
-        val call = service.getPrivateBookmarkJson(userId)
-        illusts = call.execute().body()!!
+    private val service: PixivAuthFeedJsonService = RestClient.getAuthFeedService()
+    private lateinit var mode: String
+    private var pageNumber = 1
+
+    suspend fun getNewPublicBookmarks(maxBookmarkId: String): Illusts =
+        getNewBookmarks("bookmark_public", "$userId:$maxBookmarkId") {
+            service.getPublicBookmarkOffsetJson(userId, maxBookmarkId)
+        }
+
+    suspend fun getNewPrivateIllusts(maxBookmarkId: String): Illusts =
+        getNewBookmarks("bookmark_private", "$userId:$maxBookmarkId") {
+            service.getPrivateBookmarkOffsetJson(userId, maxBookmarkId)
+        }
+
+    suspend fun getNewPublicBookmarks(): Illusts =
+        getNewBookmarks("bookmark_public", userId) { service.getPublicBookmarkJson(userId) }
+
+    suspend fun getNewPrivateIllusts(): Illusts =
+        getNewBookmarks("bookmark_private", userId) { service.getPrivateBookmarkJson(userId) }
+
+    private suspend fun getNewBookmarks(mode: String, query: String, call: () -> Call<Illusts>): Illusts {
+        this.mode = mode
+        pageNumber = 1
+        illusts = FeedPageCache.getOrFetch(context, Illusts::class.java, mode, page = pageNumber, query = query) {
+            call().awaitResponse().body()!!
+        }
         return illusts
     }
 
-    fun getNextBookmarks(): Illusts {
-        val call = service.getNextUrl(illusts.next_url)
-        illusts = call.execute().body()!!
+    suspend fun getNextBookmarks(): Illusts {
+        // next_url already carries the user and offset, so it identifies the page on its own
+        val nextUrl = illusts.next_url
+        pageNumber++
+        illusts = FeedPageCache.getOrFetch(context, Illusts::class.java, mode, page = pageNumber, query = nextUrl ?: "") {
+            service.getNextUrl(nextUrl).awaitResponse().body()!!
+        }
         return illusts
     }
 
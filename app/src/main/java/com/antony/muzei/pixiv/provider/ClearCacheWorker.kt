@@ -17,15 +17,15 @@
 package com.antony.muzei.pixiv.provider
 
 import android.content.Context
-import android.os.Environment
 import androidx.work.Worker
 import androidx.work.WorkerParameters
-import com.antony.muzei.pixiv.provider.PixivArtWorker.Companion.enqueueLoad
+import com.antony.muzei.pixiv.provider.cache.ArtworkCache
 
+// Name kept from when this wiped the whole cache, as periodic work that is already scheduled refers to it
+// PixivArtWorker also trims the cache after every run, this catches whatever was stored in between
 class ClearCacheWorker(context: Context, params: WorkerParameters) : Worker(context, params) {
     override fun doWork(): Result {
-        applicationContext.getExternalFilesDir(Environment.DIRECTORY_PICTURES)?.deleteRecursively()
-        enqueueLoad(true, applicationContext)
+        ArtworkCache.trim(applicationContext)
         return Result.success()
     }
 }
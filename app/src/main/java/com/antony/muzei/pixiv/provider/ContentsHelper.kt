@@ -1,45 +1,47 @@
 package com.antony.muzei.pixiv.provider
 
+import android.content.Context
+import com.antony.muzei.pixiv.provider.feedcache.FeedPageCache
 import com.antony.muzei.pixiv.provider.network.PixivRankingFeedJsonService
 import com.antony.muzei.pixiv.provider.network.RestClient
 import com.antony.muzei.pixiv.provider.network.moshi.Contents
+import retrofit2.awaitResponse
 
-class ContentsHelper(private val updateMode: String) {
+class ContentsHelper(private val context: Context, private val updateMode: String) {
     private lateinit var contents: Contents
-    private val service = RestClient.getRetrofitRankingInstance().create(
-        PixivRankingFeedJsonService::class.java
-    )
+    private val service: PixivRankingFeedJsonService = RestClient.getRankingFeedService()
     private var pageNumber = 1
     private lateinit var date: String
     private lateinit var prevDate: String
 
-    fun getNewContents(): Contents {
-        val call = service.getRankingJson(updateMode)
-        contents = call.execute().body()!!
+    suspend fun getNewContents(): Contents {
+        contents = FeedPageCache.getOrFetch(context, Contents::class.java, updateMode) {
+            service.getRankingJson(updateMode).awaitResponse().body()!!
+        }
         date = contents.date
         prevDate = contents.prev_date
         return contents
     }
 
-    fun getNextContents(): Contents {
+    suspend fun getNextContents(): Contents {
         if (pageNumber != 9) {
             pageNumber++
-            service.getRankingJson(updateMode, pageNumber, date)?.let {
-                contents = it.execute().body()!!
-            }
-
+            contents = getContents(pageNumber, date)
         } else {
             // If we for some reason cannot find enough artwork to satisfy the filter
             // from the top 450, then we can look at the previous day's ranking
             pageNumber = 1
-            service.getRankingJson(updateMode, pageNumber, prevDate).let {
-                contents = it.execute().body()!!
-            }
+            contents = getContents(pageNumber, prevDate)
             date = contents.date
             prevDate = contents.prev_date
         }
         return contents
     }
 
+    private suspend fun getContents(page: Int, date: String): Contents =
+        FeedPageCache.getOrFetch(context, Contents::class.java, updateMode, date, page) {
+            service.getRankingJson(updateMode, page, date).awaitResponse().body()!!
+        }
+
     fun getContents() = contents
 }
@@ -22,9 +22,12 @@ class DeleteArtworkReceiver : BroadcastReceiver(),
                 arrayOf(artworkId)
             )
 
+            // Deleting any one page excludes the whole artwork from now on
+            val illustId = ArtworkToken.getIllustId(artworkId)?.toString() ?: artworkId
             launch(Dispatchers.IO) {
                 AppDatabase.getInstance(context).deletedArtworkIdDao()
-                    .insertDeletedArtworkId(listOf(DeletedArtworkIdEntity(artworkId)))
+                    .insertDeletedArtworkId(listOf(DeletedArtworkIdEntity(illustId)))
+                ExcludedIdIndex.addDeletedArtworks(listOf(illustId))
             }
         }
     }
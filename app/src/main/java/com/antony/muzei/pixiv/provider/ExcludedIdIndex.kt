@@ -0,0 +1,70 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider
+
+import android.content.Context
+import androidx.annotation.WorkerThread
+import com.antony.muzei.pixiv.AppDatabase
+import com.antony.muzei.pixiv.util.IntHashSet
+
+/*
+ * In memory copy of the deleted artwork and blocked artist tables, shared by the whole process
+ *
+ * Each set is loaded from Room the first time it is needed, after which filtering a candidate is a
+ * single lookup instead of a query per candidate
+ * Whatever inserts into either table must also add the ids here, otherwise they only take effect
+ * once the process is restarted
+ */
+object ExcludedIdIndex {
+    private var deletedArtworkIds: IntHashSet? = null
+    private var blockedArtistIds: IntHashSet? = null
+
+    @WorkerThread
+    @Synchronized
+    fun isArtworkDeleted(context: Context, illustId: Int): Boolean {
+        val ids = deletedArtworkIds ?: toIntHashSet(
+            AppDatabase.getInstance(context).deletedArtworkIdDao().getAllDeletedArtworkIds()
+        ).also { deletedArtworkIds = it }
+        return ids.contains(illustId)
+    }
+
+    @WorkerThread
+    @Synchronized
+    fun isArtistBlocked(context: Context, artistId: Int): Boolean {
+        val ids = blockedArtistIds ?: toIntHashSet(
+            AppDatabase.getInstance(context).blockedArtistDao().getAllBlockedArtistIds()
+        ).also { blockedArtistIds = it }
+        return ids.contains(artistId)
+    }
+
+    // Call after the ids have been inserted into Room
+    // If the set has not been loaded yet there is nothing to do, it will pick them up when it is
+    @Synchronized
+    fun addDeletedArtworks(illustIds: Collection<String>) {
+        deletedArtworkIds?.let { ids -> illustIds.forEach { it.toIntOrNull()?.let(ids::add) } }
+    }
+
+    @Synchronized
+    fun addBlockedArtists(artistIds: Collection<String>) {
+        blockedArtistIds?.let { ids -> artistIds.forEach { it.toIntOrNull()?.let(ids::add) } }
+    }
+
+    private fun toIntHashSet(ids: List<String>): IntHashSet =
+        IntHashSet(ids.size).apply {
+            ids.forEach { id -> id.toIntOrNull()?.let { add(it) } }
+        }
+}
@@ -1,35 +1,54 @@
 package com.antony.muzei.pixiv.provider
 
+import android.content.Context
+import com.antony.muzei.pixiv.provider.feedcache.FeedPageCache
 import com.antony.muzei.pixiv.provider.network.PixivAuthFeedJsonService
 import com.antony.muzei.pixiv.provider.network.RestClient
 import com.antony.muzei.pixiv.provider.network.moshi.Illusts
 import retrofit2.Call
+import retrofit2.awaitResponse
 
 class IllustsHelper(
+    private val context: Context,
     private val updateMode: String,
+    // Part of every cache key, as what the API returns depends on who is logged in
+    private val userId: String,
     private val language: String = "",
     private val artist: String = "",
     private val tag: String = ""
 ) {
     private lateinit var illusts: Illusts
-    private val service: PixivAuthFeedJsonService = RestClient.getRetrofitAuthInstance()
-        .create(PixivAuthFeedJsonService::class.java)
-    
-    fun getNewIllusts(): Illusts {
-        val call: Call<Illusts?> = when (updateMode) {
-            "follow" -> service.followJson
-            "recommended" -> service.recommendedJson
-            "artist" -> service.getArtistJson(artist)
-            "tag_search" -> service.getTagSearchJson(language, tag)
-            else -> throw IllegalStateException("Unexpected value: $updateMode")
+    private val service: PixivAuthFeedJsonService = RestClient.getAuthFeedService()
+    private var pageNumber = 1
+
+    suspend fun getNewIllusts(): Illusts {
+        val query = when (updateMode) {
+            "artist" -> "$userId:$artist"
+            "tag_search" -> "$userId:$language:$tag"
+            else -> userId
+        }
+        pageNumber = 1
+        illusts = FeedPageCache.getOrFetch(context, Illusts::class.java, updateMode, page = pageNumber, query = query) {
+            val call: Call<Illusts?> = when (updateMode) {
+                "follow" -> service.followJson
+                "recommended" -> service.recommendedJson
+                "artist" -> service.getArtistJson(artist)
+                "tag_search" -> service.getTagSearchJson(language, tag)
+                else -> throw IllegalStateException("Unexpected value: $updateMode")
+            }
+            call.awaitResponse().body()!!
         }
-        illusts = call.execute().body()!!
         return illusts
     }
 
-    fun getNextIllusts(): Illusts {
-        val call = service.getNextUrl(illusts.next_url)
-        illusts = call.execute().body()!!
+    suspend fun getNextIllusts(): Illusts {
+        // next_url already carries the offset and any query, only the user has to be added
+        val nextUrl = illusts.next_url
+        pageNumber++
+        val query = "$userId:${nextUrl ?: ""}"
+        illusts = FeedPageCache.getOrFetch(context, Illusts::class.java, updateMode, page = pageNumber, query = query) {
+            service.getNextUrl(nextUrl).awaitResponse().body()!!
+        }
         return illusts
     }
 
@@ -77,12 +77,19 @@ class MuzeiCommandManager {
     }
     @SuppressLint("InlinedApi")
     private fun obtainActionShareImage(context: Context, artwork: Artwork): RemoteActionCompat? {
-        val artworkJpeg = File(context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), "${artwork.token}.jpeg")
-        val artworkPng = File(context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), "${artwork.token}.png")
+        val picturesDirectory = context.getExternalFilesDir(Environment.DIRECTORY_PICTURES)
+        val artworkJpeg = File(picturesDirectory, "${artwork.token}.jpeg")
+        val artworkPng = File(picturesDirectory, "${artwork.token}.png")
+        // Images in internal storage are named after their content, so go by where the artwork points
+        val artworkBlob = artwork.persistentUri?.takeIf { it.scheme == "file" }?.path?.let { File(it) }
 
         var artworkUri = Uri.EMPTY
         // First looks in internal storage if the artwork exists
-        if (artworkJpeg.exists()) {
+        if (picturesDirectory != null && artworkBlob?.exists() == true &&
+            artworkBlob.path.startsWith(picturesDirectory.path)
+        ) {
+            artworkUri = FileProvider.getUriForFile(context, "${BuildConfig.APPLICATION_ID}.fileprovider", artworkBlob)
+        } else if (artworkJpeg.exists()) {
             artworkUri = FileProvider.getUriForFile(context, "${BuildConfig.APPLICATION_ID}.fileprovider", artworkJpeg)
         } else if (artworkPng.exists()) {
             artworkUri = FileProvider.getUriForFile(context, "${BuildConfig.APPLICATION_ID}.fileprovider", artworkPng)
@@ -140,10 +147,10 @@ class MuzeiCommandManager {
         context: Context,
         artwork: Artwork
     ): RemoteActionCompat? =
-        artwork.token?.takeIf { it.isNotEmpty() }?.let { token ->
+        artwork.token?.let { ArtworkToken.getIllustId(it) }?.let { illustId ->
             Intent(
                 Intent.ACTION_VIEW,
-                Uri.parse(PIXIV_ARTWORK_URL + token)
+                Uri.parse(PIXIV_ARTWORK_URL + illustId)
             )
         }?.let { intent ->
             PendingIntent.getActivity(
@@ -174,7 +181,7 @@ class MuzeiCommandManager {
     ): RemoteActionCompat =
         Intent(context, AddToBookmarkService::class.java).apply {
             action = ACTION_ADD_TO_BOOKMARK
-            putExtra("artworkId", artwork.token.toString())
+            putExtra("artworkId", artwork.token?.let { ArtworkToken.getIllustId(it)?.toString() ?: it })
             putExtra("accessToken", getAccessToken())
             putExtra("artworkTitle", artwork.title)
             putExtra("artworkArtist", artwork.byline)
@@ -205,7 +212,7 @@ class MuzeiCommandManager {
     ): RemoteActionCompat =
         Intent(context, AddToBookmarkService::class.java).apply {
             action = ACTION_ADD_TO_PRIVATE_BOOKMARK
-            putExtra("artworkId", artwork.token.toString())
+            putExtra("artworkId", artwork.token?.let { ArtworkToken.getIllustId(it)?.toString() ?: it })
             putExtra("accessToken", getAccessToken())
             putExtra("artworkTitle", artwork.title)
             putExtra("artworkArtist", artwork.byline)
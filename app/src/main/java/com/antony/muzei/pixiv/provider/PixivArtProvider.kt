@@ -34,16 +34,22 @@ import androidx.core.content.FileProvider
 import androidx.preference.PreferenceManager
 import com.antony.muzei.pixiv.BuildConfig
 import com.antony.muzei.pixiv.PixivMuzeiSupervisor.start
+import com.antony.muzei.pixiv.provider.backlog.ArtworkBacklog
+import com.antony.muzei.pixiv.provider.blobstore.ArtworkBlobStore
 import com.antony.muzei.pixiv.util.IntentUtils
 import com.google.android.apps.muzei.api.UserCommand
 import com.google.android.apps.muzei.api.provider.Artwork
 import com.google.android.apps.muzei.api.provider.MuzeiArtProvider
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
 import java.io.File
 import java.io.FileNotFoundException
 import java.io.IOException
 import java.io.InputStream
 
-class PixivArtProvider : MuzeiArtProvider() {
+class PixivArtProvider : MuzeiArtProvider(), CoroutineScope by CoroutineScope(Dispatchers.Main + SupervisorJob()) {
 
     companion object {
         const val TAG = "PixivArtProviderKt"
@@ -63,12 +69,21 @@ class PixivArtProvider : MuzeiArtProvider() {
     }
 
     override fun onLoadRequested(initial: Boolean) {
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context!!)
-        if (sharedPrefs.getBoolean("pref_dataMode", false) && isOnMobileData()) {
-            Log.i("ANTONY_PROVIDER", "Data saver mode, stopping new artwork download")
-            return
+        val context = context!!
+        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context)
+        launch(Dispatchers.IO) {
+            // Serve from the backlog first, this doesn't need the network at all
+            if (ArtworkBacklog.promote(context, sharedPrefs.getInt("prefSlider_numToDownload", 2)) > 0) {
+                ArtworkBacklog.enqueueRefill(context)
+                return@launch
+            }
+
+            if (sharedPrefs.getBoolean("pref_dataMode", false) && isOnMobileData()) {
+                Log.i("ANTONY_PROVIDER", "Data saver mode, stopping new artwork download")
+                return@launch
+            }
+            PixivArtWorker.enqueueLoad(false, context)
         }
-        PixivArtWorker.enqueueLoad(false, context)
     }
 
     override fun getCommandActions(artwork: Artwork): List<RemoteActionCompat> {
@@ -92,8 +107,18 @@ class PixivArtProvider : MuzeiArtProvider() {
         val inputStream = try {
             context.contentResolver.openInputStream(artworkPersistentUri)
         } catch (ex: FileNotFoundException) {
-            Log.d(TAG, "Fail to open stream: $artworkPersistentUri", ex)
-            throw IOException("Fail to open stream: $artworkPersistentUri", ex)
+            // The same image may still be stored elsewhere, e.g. in the other storage location
+            artwork.token?.let { token ->
+                ArtworkToken.getIllustId(token)?.let { ArtworkBlobStore.open(context, it, ArtworkToken.getPage(token)) }
+            }
+                ?: run {
+                    Log.d(TAG, "Fail to open stream: $artworkPersistentUri", ex)
+                    throw IOException("Fail to open stream: $artworkPersistentUri", ex)
+                }
+        }
+        // Muzei is about to show this artwork, so it is the last the cache should evict
+        if (artworkPersistentUri.scheme == "file") {
+            artworkPersistentUri.path?.let { File(it).setLastModified(System.currentTimeMillis()) }
         }
         return requireNotNull(inputStream)
     }
@@ -137,7 +162,10 @@ class PixivArtProvider : MuzeiArtProvider() {
                     ?.let { token ->
                         Intent(
                             Intent.ACTION_VIEW,
-                            Uri.parse("http://www.pixiv.net/member_illust.php?mode=medium&illust_id=$token")
+                            Uri.parse(
+                                "http://www.pixiv.net/member_illust.php?mode=medium&illust_id=" +
+                                        ArtworkToken.getIllustId(token)
+                            )
                         )
                     }
                     ?.also { intent ->
@@ -147,25 +175,12 @@ class PixivArtProvider : MuzeiArtProvider() {
 
             MuzeiCommandManager.COMMAND_SHARE_IMAGE -> {
                 Log.d("ANTONY_WORKER", "Opening sharing ")
-                artwork.token
-                    ?.takeIf { it.isNotEmpty() }
-                    ?.let { token ->
-                        File(
-                            context.getExternalFilesDir(Environment.DIRECTORY_PICTURES),
-                            "$token.png"
-                        )
-                    }
-                    ?.let { file ->
-                        FileProvider.getUriForFile(
-                            context,
-                            "${BuildConfig.APPLICATION_ID}.fileprovider",
-                            file
-                        )
-                    }
+                getShareableUri(context, artwork)
                     ?.let { uri ->
                         Intent(Intent.ACTION_SEND).apply {
-                            type = "image/jpg"
+                            type = "image/*"
                             putExtra(Intent.EXTRA_STREAM, uri)
+                            addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)
                         }
                     }
                     ?.also {
@@ -175,6 +190,24 @@ class PixivArtProvider : MuzeiArtProvider() {
         }
     }
 
+    // Images in internal storage are named after their content, so go by where the artwork points
+    // Artworks stored before that are still named after their token
+    private fun getShareableUri(context: Context, artwork: Artwork): Uri? {
+        val persistentUri = artwork.persistentUri ?: return null
+        if (persistentUri.scheme != "file") {
+            // Stored through the MediaStore, which can be shared as is
+            return persistentUri
+        }
+        val picturesDirectory = context.getExternalFilesDir(Environment.DIRECTORY_PICTURES) ?: return null
+        val file = persistentUri.path?.let { File(it) }?.takeIf { it.exists() }
+            ?: listOf("png", "jpeg").map { File(picturesDirectory, "${artwork.token}.$it") }.firstOrNull { it.exists() }
+            ?: return null
+        if (!file.path.startsWith(picturesDirectory.path)) {
+            return null
+        }
+        return FileProvider.getUriForFile(context, "${BuildConfig.APPLICATION_ID}.fileprovider", file)
+    }
+
     @SuppressLint("InlinedApi")
     override fun getArtworkInfo(artwork: Artwork): PendingIntent? {
         if (artwork.webUri != null && context != null) {
@@ -1,7 +1,5 @@
 package com.antony.muzei.pixiv.provider
 
-import android.content.ContentResolver
-import android.content.ContentUris
 import android.content.ContentValues
 import android.content.Context
 import android.content.SharedPreferences
@@ -16,11 +14,11 @@ import androidx.annotation.RequiresApi
 import androidx.preference.PreferenceManager
 import androidx.work.BackoffPolicy
 import androidx.work.Constraints
+import androidx.work.CoroutineWorker
 import androidx.work.ExistingWorkPolicy
 import androidx.work.NetworkType
 import androidx.work.OneTimeWorkRequest
 import androidx.work.WorkManager
-import androidx.work.Worker
 import androidx.work.WorkerParameters
 import com.antony.muzei.pixiv.AppDatabase
 import com.antony.muzei.pixiv.PixivMuzeiSupervisor
@@ -28,43 +26,81 @@ import com.antony.muzei.pixiv.PixivMuzeiSupervisor.getAccessToken
 import com.antony.muzei.pixiv.PixivProviderConst
 import com.antony.muzei.pixiv.PixivProviderConst.AUTH_MODES
 import com.antony.muzei.pixiv.R
+import com.antony.muzei.pixiv.provider.backlog.ArtworkBacklog
+import com.antony.muzei.pixiv.provider.blobstore.ArtworkBlobStore
+import com.antony.muzei.pixiv.provider.bookmarks.BookmarkMirror
+import com.antony.muzei.pixiv.provider.cache.ArtworkCache
 import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
 import com.antony.muzei.pixiv.provider.exceptions.CorruptFileException
 import com.antony.muzei.pixiv.provider.exceptions.FilterMatchNotFoundException
-import com.antony.muzei.pixiv.provider.network.OkHttpSingleton
-import com.antony.muzei.pixiv.provider.network.PixivImageDownloadService
+import com.antony.muzei.pixiv.provider.exceptions.ImageTooLargeException
+import com.antony.muzei.pixiv.provider.extension.OriginalExtensionResolver
+import com.antony.muzei.pixiv.provider.filesize.OversizedArtworkEntity
+import com.antony.muzei.pixiv.provider.ingest.ImageIngest
+import com.antony.muzei.pixiv.provider.network.ConnectionMetrics
+import com.antony.muzei.pixiv.provider.network.PartialDownload
 import com.antony.muzei.pixiv.provider.network.RestClient
-import com.antony.muzei.pixiv.provider.network.interceptor.ImageIntegrityInterceptor
-import com.antony.muzei.pixiv.provider.network.interceptor.StandardImageHttpHeaderInterceptor
+import com.antony.muzei.pixiv.provider.network.RubySSLSocketFactory
+import com.antony.muzei.pixiv.provider.network.executeCancellable
 import com.antony.muzei.pixiv.provider.network.moshi.AuthArtwork
 import com.antony.muzei.pixiv.provider.network.moshi.Contents
 import com.antony.muzei.pixiv.provider.network.moshi.RankingArtwork
+import com.antony.muzei.pixiv.provider.resolution.ImageVariant
+import com.antony.muzei.pixiv.provider.resolution.ResolutionPolicy
 import com.antony.muzei.pixiv.util.HostManager
+import com.antony.muzei.pixiv.util.IntHashSet
 import com.google.android.apps.muzei.api.provider.Artwork
 import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.api.provider.ProviderContract.getProviderClient
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.sync.withPermit
 import okhttp3.MediaType
+import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import okhttp3.Request
-import okhttp3.ResponseBody
 import okio.buffer
 import okio.sink
+import okio.source
 import java.io.File
-import java.io.OutputStream
+import java.io.IOException
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.TimeUnit
 
 class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
-    Worker(context, workerParams) {
+    CoroutineWorker(context, workerParams) {
     companion object {
         const val LOG_TAG = "ANTONY_WORKER"
         private const val WORKER_TAG = "ANTONY"
-        private val IMAGE_EXTENSIONS = arrayOf(".jpg", ".png")
+
+        // Input data flag, set when the downloaded artworks should go into the ArtworkBacklog instead of Muzei
+        const val KEY_FILL_BACKLOG = "fillBacklog"
+
+        private val IMAGE_EXTENSIONS = listOf(".jpg", ".png")
+        private const val MAX_INTEGRITY_RETRIES = 3
+
+        // Same as a page of the bookmarks API, which bookmark mode used to filter against
+        private const val BOOKMARK_BATCH_SIZE = 30
 
         // Variable that tracks if the artwork cache needs to be cleared
         private var clearArtwork = false
 
+        // A backlog refill is separate unique work, so it could otherwise run alongside a regular load
+        // The two would select from the same candidates and write to the same part files
+        internal val loadMutex = Mutex()
+
         internal fun enqueueLoad(clearArtworkRequested: Boolean, context: Context?) {
             if (clearArtworkRequested) {
                 clearArtwork = true
+                // Anything pre-downloaded was chosen for the previous settings
+                context?.let { ArtworkBacklog.clear(it) }
             }
 
             context?.also {
@@ -89,113 +125,190 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
         }
     }
 
-    /*
-    * Performs binary search to find when the oldest bookmark artwork was made.
-    * Buckle up for a fairly convoluted explanation
-    * Context: Imagine a user account with 1000 bookmarked artworks made over the past one year
-    * The Pixiv API has no way to arbitrarily navigate to any single bookmarked artwork.
-    * Instead, when making an API call we may specify a "max_bookmark_id" parameter
-    * This parameter is a timestamp of some sort. From my investigations, it appears to be a counting
-    * in centiseconds from an epoch sometime in early 2016. This doesn't seem entirely correct, but exact understanding
-    * is not strictly required
-    * The parameter is a "sliding window", and varying this parameter varies what artworks are returned in the API response
-    * As the parameter is a timestamp, adjusting it can have unpredictable results:
-    *   If the user has made many bookmarks in a short period of time, then a slight adjustment will present completely new artworks
-    *   If the user has slowly added bookmarks, then even a large adjustment will not result in a dramatically different API response
-    *
-    * Binary search parameters
-    *   Stop criteria: API response with non-empty artwork list, but also a null next_url value
-    *   Heuristics:
-    *       We are too high if the API response contains a next_url value
-    *       We are low if the API response contains no artworks.
-    *   Search space: Between maximal value and 0
-    *   Initial value: maximal value
-    *   Initial step: to halfway within the search space
-    *
-    * Binary Search Algorithm
-    *   Every step, if the stop criteria is not met, the search will move up or down by half the last step
-    *
-    *
-    * Example:
-    *   Say that the initial value is 100, and the target value is 67.5
-    *       The inital search at 100 is too high, so we go down by half the search space to 50
-    *       50 is too low, go up by half the previous step (25 = 50 / 2) to 75
-    *       75 is too high, so we go down by half the previous step (12.5 = 25 / 2) to 67.5
-    *       We have a match
-    */
-    private fun findBookmarkStartTime(userId: String) {
-        Log.d(LOG_TAG, "Looking for oldest bookmark id")
-        val bookmarks = BookmarksHelper(userId)
-        bookmarks.getNewPublicBookmarks()
-
-        var counter = 0 // Used only to output to logcat how many iterations it took find
-        var callingId = 0L // Stores the next time "window" to check
-        // Initial value of this is the latest bookmark / largest possible value
-        var step = bookmarks.getBookmarks().next_url!!.substringAfter("max_bookmark_id=").toLong()
+    // Downloads the image at url, returning null if the server responded with an error
+    // Runs cancellably: if the work is stopped mid download, the connection is dropped
+    // What was received so far is kept in a PartialDownload, and the next attempt resumes from there
+    // The body's length is verified while it is written, and only a corrupt download is retried
+    // Images larger than the maximum file size are rejected from their headers where possible,
+    // otherwise the download is aborted as soon as the limit is crossed
+    private suspend fun downloadImage(
+        url: String,
+        illustId: Int,
+        page: Int,
+        filename: String,
+        storeInExtStorage: Boolean
+    ): Uri? {
+        val imageHttpClient = RestClient.getImageClient()
+        val partial = PartialDownload(getPartialDirectory(storeInExtStorage), filename)
 
+        var retryCount = 0
         while (true) {
-            counter++
-            step /= 2 //Halving the step size
-            Log.d(LOG_TAG, "Iteration $counter")
-            if (bookmarks.getBookmarks().next_url != null) {
-                // we are not looking far enough in the past
-                // we need to reduce the maxBookmarkId parameter to
-                val currentId =
-                    bookmarks.getBookmarks().next_url!!.substringAfter("max_bookmark_id=").toLong()
-                callingId = currentId - step
-            } else if (bookmarks.getBookmarks().artworks.isEmpty()) {
-                // we are looking too far in the past
-                // we need to increase the maxBookmarkId parameter to look closer to current time
-                callingId += step
-            } else {
-                // we have found the stop criteria
-                Log.d(LOG_TAG, "Found at $callingId")
-                break
-            }
-            bookmarks.getNewPublicBookmarks(callingId.toString())
-
-        }
-        with(PreferenceManager.getDefaultSharedPreferences(applicationContext).edit()) {
-            putLong("oldestMaxBookmarkId", callingId)
-            apply()
-        }
-    }
-
-    private fun downloadImage(
-        responseBody: ResponseBody?,
+            try {
+                // A previous attempt got every byte, but was stopped before the image was stored
+                if (partial.isComplete(url)) {
+                    Log.i(LOG_TAG, "Completed part file found, storing it")
+                    // Processing it again would only cost another lossy re-encode
+                    val fileType = if (partial.isIngested) {
+                        partial.contentType
+                    } else {
+                        ingestImage(partial, partial.contentType)
+                    }
+                    return storeImage(partial, illustId, page, filename, fileType, storeInExtStorage)
+                }
+
+                val request: Request = Request.Builder().url(url).get().apply {
+                    partial.getResumeHeaders(url).forEach { (name, value) -> header(name, value) }
+                }.build()
+                return imageHttpClient.newCall(request).executeCancellable { response ->
+                    if (response.code == 416) {
+                        // Whatever we have does not match the file on the server, start over
+                        partial.discard()
+                        throw CorruptFileException("Could not resume download of $url")
+                    }
+                    if (!response.isSuccessful) {
+                        null
+                    } else {
+                        val fileType = response.body.contentType()
+                        val storedType = imageIngest?.outputType ?: fileType
+                        getExistingImage(illustId, page, filename, storedType, storeInExtStorage)?.let {
+                            // If the image has already been downloaded, do not redownload
+                            Log.i(LOG_TAG, "Artwork exists, early exit")
+                            partial.discard()
+                            return@executeCancellable it
+                        }
+                        val maxFileSize = settings.maxFileSize
+                        if (maxFileSize > 0) {
+                            val totalLength = partial.getTotalLength(response)
+                            if (totalLength > maxFileSize) {
+                                partial.discard()
+                                throw ImageTooLargeException("$url is $totalLength bytes", totalLength)
+                            }
+                        }
+                        try {
+                            partial.writeFrom(url, response, if (maxFileSize > 0) maxFileSize else Long.MAX_VALUE)
+                        } catch (e: ImageTooLargeException) {
+                            partial.discard()
+                            throw e
+                        }
+                        val ingestedType = ingestImage(partial, fileType)
+                        storeImage(partial, illustId, page, filename, ingestedType, storeInExtStorage)
+                    }
+                }
+            } catch (e: CorruptFileException) {
+                if (retryCount == MAX_INTEGRITY_RETRIES) {
+                    throw CorruptFileException("Could not download intact image", e)
+                }
+                retryCount++
+                Log.d(LOG_TAG, "Corrupt image found, attempt $retryCount / $MAX_INTEGRITY_RETRIES: ${e.message}")
+            }
+        }
+    }
+
+    // Crops the completed download, scales it down to the wallpaper's size and re-encodes it, if the user wants that
+    // Returns the type the image is to be stored as
+    private suspend fun ingestImage(partial: PartialDownload, fileType: MediaType?): MediaType? =
+        imageIngest?.process(partial, fileType) ?: fileType
+
+    // Part files are kept next to where the image ends up, so promoting one is a rename
+    // Images stored through the MediaStore on API 29+ have no path we can use, so theirs stay in app storage
+    private fun getPartialDirectory(storeInExtStorage: Boolean): File =
+        if (storeInExtStorage && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            getExternalDirectoryApi28()
+        } else {
+            applicationContext.getExternalFilesDir(Environment.DIRECTORY_PICTURES)!!
+        }
+
+    private fun getExistingImage(
+        illustId: Int,
+        page: Int,
         filename: String,
+        fileType: MediaType?,
         storeInExtStorage: Boolean
-    ): Uri {
-        val fileType = responseBody?.contentType()
+    ): Uri? =
+        if (!storeInExtStorage) {
+            getInternalImageFile(filename, fileType).takeIf { it.exists() }?.let { Uri.fromFile(it) }
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            getExistingImageExternalApi29(illustId, page)
+        } else {
+            File(getExternalDirectoryApi28(), "$filename.${fileType!!.subtype}")
+                .takeIf { it.exists() }?.let { Uri.fromFile(it) }
+        }
+
+    // An image of this page we already have, from an earlier download or another artwork with identical content
+    // If it is only stored in the other location, e.g. since the user switched storage mode, it is copied over
+    private suspend fun findStoredImage(illustId: Int, page: Int, filename: String): Uri? {
+        val storeInExtStorage = settings.storeInExtStorage
+        val location = ArtworkBlobStore.getLocation(storeInExtStorage)
+        val blobs = withContext(Dispatchers.IO) { ArtworkBlobStore.find(applicationContext, illustId, page) }
+        blobs.firstOrNull { it.location == location }?.let {
+            Log.i(LOG_TAG, "Artwork already stored, early exit")
+            return Uri.parse(it.uri)
+        }
+        val blob = blobs.firstOrNull() ?: return null
+
+        Log.i(LOG_TAG, "Copying artwork from ${blob.location} storage instead of downloading it")
+        val partial = PartialDownload(getPartialDirectory(storeInExtStorage), filename)
+        val fileType = blob.mimeType?.toMediaTypeOrNull()
+        withContext(Dispatchers.IO) {
+            applicationContext.contentResolver.openInputStream(Uri.parse(blob.uri))?.source()?.use {
+                partial.copyFrom(blob.uri, it, fileType)
+            }
+        } ?: return null
+        return storeImage(partial, illustId, page, filename, fileType, storeInExtStorage)
+    }
 
-        return if (!storeInExtStorage) {
-            downloadImageInternal(responseBody, filename, fileType)
+    // Moves a completed download to where the user has chosen to keep their artwork, and indexes it
+    // If an image with identical content is already stored there, that is used instead
+    private suspend fun storeImage(
+        partial: PartialDownload,
+        illustId: Int,
+        page: Int,
+        filename: String,
+        fileType: MediaType?,
+        storeInExtStorage: Boolean
+    ): Uri {
+        val location = ArtworkBlobStore.getLocation(storeInExtStorage)
+        val hash = withContext(Dispatchers.IO) { ArtworkBlobStore.hash(partial.partFile) }
+        val existing = withContext(Dispatchers.IO) {
+            ArtworkBlobStore.findByHash(applicationContext, hash, location)
+        }
+        val imageUri = if (existing != null) {
+            Log.i(LOG_TAG, "Identical image already stored, reusing it")
+            partial.discard()
+            Uri.parse(existing.uri)
+        } else if (!storeInExtStorage) {
+            storeImageInternal(partial, hash, fileType)
         } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            downloadImageExternalApi29(responseBody, filename, fileType)
+            storeImageExternalApi29(partial, filename, fileType)
+        } else {
+            storeImageExternalApi28(partial, filename, fileType)
+        }
+        // Lets an image on a removable volume be told apart from one that was deleted, see ArtworkBlobStore
+        val volume = if (storeInExtStorage && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            MediaStore.getVolumeName(imageUri)
         } else {
-            downloadImageExternalApi28(responseBody, filename, fileType)
+            null
+        }
+        withContext(Dispatchers.IO) {
+            ArtworkBlobStore.record(applicationContext, illustId, page, location, hash, imageUri, fileType, volume)
         }
+        return imageUri
     }
 
-    // Function to download images to external storage
+    // Function to store images to external storage
     // External storage in this case refers to /storage/emulated/0/Pictures/PixivForMuzei3
     // Option is also there to store onto an SD card if present
     @RequiresApi(Build.VERSION_CODES.Q)
-    private fun downloadImageExternalApi29(
-        responseBody: ResponseBody?,
+    private suspend fun storeImageExternalApi29(
+        partial: PartialDownload,
         filename: String,
         fileType: MediaType?,
     ): Uri {
-        Log.i(LOG_TAG, "Downloading artwork, external API >29")
+        Log.i(LOG_TAG, "Storing artwork, external API >29")
         val contentResolver = applicationContext.contentResolver
 
-        // If image already exists on the filesystem, then we can skip downloading it
-        getExistingImageExternalApi29(contentResolver, filename)?.let {
-            Log.i(LOG_TAG, "Image already exists, early exiting")
-            return it
-        }
-
         // Inserting the filename, relative path within the /Pictures folder, and MIME type into the content provider
+        // IS_PENDING hides the entry from other apps until the image has been copied in
         val contentValues = ContentValues().apply {
             put(MediaStore.Images.Media.DISPLAY_NAME, filename)
             put(
@@ -203,6 +316,7 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
                 Environment.DIRECTORY_PICTURES + "/PixivForMuzei3"
             )
             put(MediaStore.MediaColumns.MIME_TYPE, fileType.toString())
+            put(MediaStore.MediaColumns.IS_PENDING, 1)
         }
 
         // Default option is VOLUME_EXTERNAL_PRIMARY
@@ -211,9 +325,7 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
         // Then, iterate through the array of mounted storages until we find one that is not VOLUME_EXTERNAL_PRIMARY
         // The manual iterating is required as I received a user report where VOLUME_EXTERNAL_PRIMARY was not the first entry
         var volumeName = MediaStore.VOLUME_EXTERNAL_PRIMARY
-        if (!PreferenceManager.getDefaultSharedPreferences(applicationContext)
-                .getString("pref_selectWhichExtStorage", "phone").equals("phone")
-        ) {
+        if (settings.selectWhichExtStorage != "phone") {
             MediaStore.getExternalVolumeNames(applicationContext).takeIf { it.size > 1 }
                 ?.let { volumeNames ->
                     for (volume in volumeNames) {
@@ -230,122 +342,170 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
             contentValues
         )!!
         // Null asserted here because if contentResolver.insert() returns a null for whatever reason, we really cannot proceed
-        // The other method using BufferedSink doesn't work all we have is a URI to sink into
 
-        val fis = responseBody!!.byteStream()
-        val fosExternal: OutputStream? = contentResolver.openOutputStream(imageUri)
-        val buffer = ByteArray(1024 * 1024 * 10)
-        var lengthInternal: Int
-        while (fis.read(buffer).also { lengthInternal = it } > 0) {
-            fosExternal!!.write(buffer, 0, lengthInternal)
+        // The MediaStore gives us no path to rename into, so the completed part file is copied instead
+        try {
+            withContext(Dispatchers.IO) {
+                contentResolver.openOutputStream(imageUri)!!.sink().buffer().use { sink ->
+                    partial.partFile.source().use { sink.writeAll(it) }
+                }
+            }
+        } catch (e: Throwable) {
+            // Includes cancellation, don't leave a half written image in the user's gallery
+            // The part file is kept, so the next attempt only has to copy it again
+            contentResolver.delete(imageUri, null, null)
+            throw e
         }
-        fosExternal!!.close()
-        fis.close()
+        contentResolver.update(
+            imageUri,
+            ContentValues().apply { put(MediaStore.MediaColumns.IS_PENDING, 0) },
+            null,
+            null
+        )
+        partial.discard()
 
-        Log.i(LOG_TAG, "Downloaded")
+        Log.i(LOG_TAG, "Stored")
         return imageUri
     }
 
     /* Checking if existing copy of images exists*/
-    // Returns the Uri of an image with matching filename
+    // Returns the Uri of an image of this page that we stored in the MediaStore
     // otherwise returns null
-    private fun getExistingImageExternalApi29(
-        contentResolver: ContentResolver,
-        filename: String
-    ): Uri? {
-        // Specifying that I want only the _ID column returned
-        // Specifying that I only want rows that have a DISPLAY_NAME matching the filename passed
-        contentResolver.query(
-            MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-            arrayOf(MediaStore.Images.Media._ID),
-            "${MediaStore.Images.Media.DISPLAY_NAME} LIKE ?",
-            arrayOf("$filename%"),
-            null
-        )?.use {
-            if (it.moveToFirst()) {
+    // A point lookup in our own index, instead of scanning the user's whole photo library by DISPLAY_NAME
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private fun getExistingImageExternalApi29(illustId: Int, page: Int): Uri? =
+        ArtworkBlobStore.find(applicationContext, illustId, page)
+            .firstOrNull { it.location == ArtworkBlobStore.LOCATION_EXTERNAL }
+            ?.let {
                 Log.v(LOG_TAG, "downloadImageAPI10: Duplicate found")
-                return ContentUris.withAppendedId(
-                    MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                    it.getInt(it.getColumnIndexOrThrow(MediaStore.Images.ImageColumns._ID)).toLong()
-                )
+                Uri.parse(it.uri)
             }
-        }
-        return null
-    }
 
-    // Function to download images to "external storage"
     // External storage is described at the path below
-    // This function is used when downloading on external storage on Api 28 or lower
-    private fun downloadImageExternalApi28(
-        responseBody: ResponseBody?,
-        filename: String,
-        fileType: MediaType?,
-    ): Uri {
-        Log.i(LOG_TAG, "Downloading artwork, external API < 28")
-        // Checks if directory exists. If nonexistent, then create it
-        val directory = File("/storage/emulated/0/Pictures/PixivForMuzei3/")
-        if (!directory.exists()) {
-            directory.mkdirs()
-        }
-
-        val image = File(directory, "$filename.${fileType!!.subtype}").also { image ->
-            if (!image.exists()) {
-                // Broadcast the addition of a new media file
-                // Solves problem where the images were not showing up in their gallery up until a scan was triggered
-                MediaScannerConnection.scanFile(
-                    applicationContext,
-                    arrayOf(image.toString()),
-                    null,
-                    null
-                )
-            } else {
-                // If the image has already been downloaded, do not redownload
-                Log.i(LOG_TAG, "Artwork exists, early exit")
-                return Uri.fromFile(image)
+    // Used when storing on external storage on Api 28 or lower
+    // Checks if directory exists. If nonexistent, then create it
+    private fun getExternalDirectoryApi28(): File =
+        File("/storage/emulated/0/Pictures/PixivForMuzei3/").apply {
+            if (!exists()) {
+                mkdirs()
             }
         }
 
-        with(image.sink().buffer()) {
-            writeAll(responseBody!!.source())
-            responseBody.close()
-            close()
-
-        }
+    // Function to store images to "external storage"
+    // This function is used when storing on external storage on Api 28 or lower
+    private fun storeImageExternalApi28(
+        partial: PartialDownload,
+        filename: String,
+        fileType: MediaType?,
+    ): Uri {
+        Log.i(LOG_TAG, "Storing artwork, external API < 28")
+        val image = File(getExternalDirectoryApi28(), "$filename.${fileType!!.subtype}")
+        partial.promoteTo(image)
+
+        // Broadcast the addition of a new media file
+        // Solves problem where the images were not showing up in their gallery up until a scan was triggered
+        // Done after the download so the scanner never sees a partial file
+        MediaScannerConnection.scanFile(
+            applicationContext,
+            arrayOf(image.toString()),
+            null,
+            null
+        )
 
-        Log.i(LOG_TAG, "Downloaded")
+        Log.i(LOG_TAG, "Stored")
         return Uri.fromFile(image)
     }
 
-
-    // Function used to download images to internal storage
     // Internal storage in this case is /storage/emulated/0/Android/data/com.antony.muzei.pixiv/files
-    private fun downloadImageInternal(
-        responseBody: ResponseBody?,
-        filename: String,
-        fileType: MediaType?,
-    ): Uri {
-        Log.i(LOG_TAG, "Downloading artwork, internal")
+    // Images are now stored by content instead, this finds those downloaded before that
+    private fun getInternalImageFile(filename: String, fileType: MediaType?): File =
         File(
             applicationContext.getExternalFilesDir(Environment.DIRECTORY_PICTURES),
             "$filename.${fileType!!.subtype}"
             // TODO handle this null asserted
-        ).also {
-            if (it.exists()) {
-                Log.i(LOG_TAG, "Artwork exists, early exit")
-                return Uri.fromFile(it)
-            }
-        }.also {
-            with(it.sink().buffer()) {
-                writeAll(responseBody!!.source())
-                responseBody.close()
-                close()
-            }
+        )
+
+    // Function used to store images to internal storage
+    // Named after their content, see ArtworkBlobStore
+    private fun storeImageInternal(
+        partial: PartialDownload,
+        hash: String,
+        fileType: MediaType?,
+    ): Uri {
+        Log.i(LOG_TAG, "Storing artwork, internal")
+        val image = ArtworkBlobStore.getBlobFile(applicationContext, hash, fileType)
+        partial.promoteTo(image)
+
+        Log.i(LOG_TAG, "Stored")
+        return Uri.fromFile(image)
+    }
+
+    // Settings for the duration of this run, taken when the work starts
+    private lateinit var settings: ProviderSettings
+
+    // Tokens of every page Muzei or the backlog already has
+    // Loaded in one go on first use, instead of querying the provider for every candidate
+    private val knownTokens: List<String> by lazy { loadKnownTokens() }
 
-            Log.i(LOG_TAG, "Downloaded")
-            return Uri.fromFile(it)
+    // IDs of every artwork whose first page is known, plus those selected so far during this run
+    // Downloads complete out of order, so selections are added here as soon as they are made
+    private val knownArtworkIds: IntHashSet by lazy {
+        IntHashSet(knownTokens.size).apply {
+            knownTokens.filter { ArtworkToken.getPage(it) == 0 }
+                .forEach { token -> ArtworkToken.getIllustId(token)?.let { add(it) } }
+            Log.d(LOG_TAG, "Loaded $size known artwork ids")
         }
     }
 
+    // Later pages of multi-page artworks are far rarer, so they are simply kept by token
+    private val knownPageTokens: HashSet<String> by lazy {
+        knownTokens.filterTo(HashSet()) { ArtworkToken.getPage(it) != 0 }
+    }
+
+    // Decides which size of each artwork to download, based on the wallpaper's size and the current network
+    private val resolutionPolicy: ResolutionPolicy by lazy { ResolutionPolicy.create(applicationContext, settings) }
+
+    // Null if images are stored exactly as downloaded
+    private val imageIngest: ImageIngest? by lazy { ImageIngest.create(settings, resolutionPolicy) }
+
+    // Pages previously found to be larger than the current maximum file size, keyed by getOversizedKey()
+    private val oversizedPages: HashSet<String> by lazy {
+        AppDatabase.getInstance(applicationContext).oversizedArtworkDao()
+            .getArtworksLargerThan(settings.maxFileSize)
+            .mapTo(HashSet()) { getOversizedKey(it.illustId, it.page, it.variant) }
+    }
+
+    private fun getOversizedKey(illustId: Int, page: Int, variant: String): String =
+        "${ArtworkToken.create(illustId, page)}:$variant"
+
+    // Only the variant that is about to be downloaded matters, a too large original doesn't rule out its master
+    private fun isOversized(illustId: Int, page: Int, variant: ImageVariant): Boolean =
+        settings.maxFileSize > 0 && oversizedPages.contains(getOversizedKey(illustId, page, variant.name))
+
+    // Pages that are neither known already nor too large in the variant that would be downloaded
+    private fun getCandidatePages(illustId: Int, pageCount: Int, variant: ImageVariant): List<Int> =
+        getUnknownPages(illustId, pageCount).filter { !isOversized(illustId, it, variant) }
+
+    // Remembers the size of a page that was rejected, so it is filtered out before downloading next time
+    private suspend fun <T> recordingOversized(
+        illustId: Int,
+        page: Int,
+        variant: ImageVariant,
+        download: suspend () -> T
+    ): T =
+        try {
+            download()
+        } catch (e: ImageTooLargeException) {
+            Log.i(LOG_TAG, "Artwork $illustId page $page ($variant) exceeds the maximum file size: ${e.message}")
+            if (e.fileSize >= 0) {
+                withContext(Dispatchers.IO) {
+                    AppDatabase.getInstance(applicationContext).oversizedArtworkDao()
+                        .insertOversizedArtwork(OversizedArtworkEntity(illustId, page, variant.name, e.fileSize))
+                }
+            }
+            throw e
+        }
+
     private fun isDesiredPixelSize(
         width: Int,
         height: Int,
@@ -381,45 +541,72 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
     // Returns true if the artwork's ID exists int the DeletedArtwork database
     // If the database in inaccessible for whatever reason, false is returned
     private fun isBeenDeleted(illustId: Int): Boolean {
-        return AppDatabase.getInstance(applicationContext).deletedArtworkIdDao()
-            .isRowIsExist(illustId)
+        return ExcludedIdIndex.isArtworkDeleted(applicationContext, illustId)
     }
 
     private fun hasArtistBeenBlocked(artistId: Int): Boolean {
-        return AppDatabase.getInstance(applicationContext).blockedArtistDao().isRowIsExist(artistId)
+        return ExcludedIdIndex.isArtistBlocked(applicationContext, artistId)
     }
 
 
-    // Returns true if the image currently exists in the app's ContentProvider, e.g. it can be selected by Muzei at any time as the wallpaper
-    private fun isDuplicateArtwork(illustId: Int): Boolean {
-        // SQL pseudocode
-        // FROM PixivArtProvider.providerClient SELECT _id WHERE token = illustId
+    // Reads the tokens of every artwork currently in the app's ContentProvider, e.g. those that can be selected by Muzei
+    // at any time as the wallpaper, along with those waiting in the backlog
+    private fun loadKnownTokens(): List<String> {
+        val tokens = ArtworkBacklog.getTokens(applicationContext).toMutableList()
         applicationContext.contentResolver.query(
             getProviderClient(applicationContext, PixivArtProvider::class.java).contentUri,
-            arrayOf(ProviderContract.Artwork._ID),
-            "${ProviderContract.Artwork.TOKEN} = ?",
-            arrayOf(illustId.toString()),
+            arrayOf(ProviderContract.Artwork.TOKEN),
+            null,
+            null,
             null
         )?.use {
-            val duplicateFound = it.count > 0
-            it.close()
-            return duplicateFound
+            while (it.moveToNext()) {
+                it.getString(0)?.let { token -> tokens.add(token) }
+            }
+        }
+        return tokens
+    }
+
+    private fun isKnownPage(illustId: Int, page: Int): Boolean =
+        if (page == 0) {
+            knownArtworkIds.contains(illustId)
+        } else {
+            knownPageTokens.contains(ArtworkToken.create(illustId, page))
+        }
+
+    private fun addKnownPage(illustId: Int, page: Int) {
+        if (page == 0) {
+            knownArtworkIds.add(illustId)
+        } else {
+            knownPageTokens.add(ArtworkToken.create(illustId, page))
         }
-        // This is only reachable if contentResolver.query() returned null for whatever reason, and should never happen
-        return false
     }
 
+    // Pages of a multi-page artwork are each offered as an artwork of their own
+    // An artwork stays a candidate until every one of its pages is known
+    private fun getUnknownPages(illustId: Int, pageCount: Int): List<Int> =
+        (0 until pageCount).filter { !isKnownPage(illustId, it) }
+
+    private fun hasUnknownPage(illustId: Int, pageCount: Int): Boolean =
+        (0 until pageCount).any { !isKnownPage(illustId, it) }
+
     /*
     Ranking images are only provided with a URL to a low resolution thumbnail
     We want the high resolution image, so we need to do some work first
 
     Secondly, the thumbnail is always a .jpg
     For the high resolution image we require a correct file extension
-    This method tests all file extensions (PNG or JPG) until a good response is received
-        i.e. a response that is not a 400 class error
-    Returns a ResponseBody which contains the picture to download
+    OriginalExtensionResolver probes every extension (PNG or JPG) at once, or knows it from a previous download
+    The resolved extension is downloaded first, with the others as a fallback should it fail,
+        i.e. a response that is a 400 class error
+    The successful response is downloaded straight away, and its Uri returned
 */
-    private fun getRemoteFileExtension(thumbnailUrl: String): ResponseBody? {
+    private suspend fun downloadRemoteFileExtension(
+        thumbnailUrl: String,
+        illustId: Int,
+        page: Int,
+        filename: String
+    ): Uri {
         Log.i(LOG_TAG, "Getting remote file extensions")
         /* Deliberately not turned into scope function to optimize readability */
 
@@ -434,49 +621,62 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
         // Last transformation removes the trailing file extensions
         //  https://i.pximg.net/img-original/img/2020/02/19/00/00/39/79583564_p0
 
-        for (extension in IMAGE_EXTENSIONS) {
+        val resolvedExtension = OriginalExtensionResolver.resolve(
+            applicationContext,
+            illustId,
+            transformUrlNoExtension,
+            IMAGE_EXTENSIONS
+        )
+        val extensions = resolvedExtension?.let { listOf(it) + (IMAGE_EXTENSIONS - it) } ?: IMAGE_EXTENSIONS
+        for (extension in extensions) {
             val urlToTest = transformUrlNoExtension + extension
 
             val finalUrl = HostManager.get().replaceUrl(urlToTest)
-            val remoteFileExtenstionRequest: Request = Request.Builder()
-                .url(finalUrl)
-                .get()
-                .build()
-            val imageHttpClient = OkHttpSingleton.getInstance().newBuilder()
-                //.addNetworkInterceptor(NetworkTrafficLogInterceptor())
-                .addInterceptor(StandardImageHttpHeaderInterceptor())
-                .addInterceptor(ImageIntegrityInterceptor())
-                .build()
-
-            imageHttpClient.newCall(remoteFileExtenstionRequest).execute().let {
-                if (it.isSuccessful) {
-                    Log.i(LOG_TAG, "Getting remote file extensions completed")
-                    return it.body
-                } else {
-                    it.close()
-                }
+            downloadImage(finalUrl, illustId, page, filename, settings.storeInExtStorage)?.let {
+                OriginalExtensionResolver.remember(applicationContext, illustId, extension)
+                Log.i(LOG_TAG, "Getting remote file extensions completed")
+                return it
             }
         }
-        // TODO don't throw a null, throw an exception
-        return null
+        throw CorruptFileException("No original image found for $thumbnailUrl")
     }
 
-    // Each call to this function returns a single Ranking artwork
-    private fun buildArtworkRanking(contents: Contents): Artwork {
+    // Downloads one of the scaled down variants of an artwork
+    // Returns null if the server doesn't have it, so the caller can fall back to the original
+    private suspend fun downloadVariant(
+        url: String,
+        variant: ImageVariant,
+        illustId: Int,
+        page: Int,
+        filename: String
+    ): Uri? {
+        Log.i(LOG_TAG, "Downloading $variant variant")
+        return recordingOversized(illustId, page, variant) {
+            downloadImage(HostManager.get().replaceUrl(url), illustId, page, filename, settings.storeInExtStorage)
+        }
+    }
+
+    // Each call to this function selects a single Ranking artwork
+    // Filtering happens immediately, so a FilterMatchNotFoundException is thrown from here
+    // The returned function performs the slow part, downloading the image and building the Artwork
+    private fun selectArtworkRanking(
+        contents: Contents,
+        filter: ArtworkFilter<RankingArtwork>
+    ): suspend () -> Artwork {
         Log.i(LOG_TAG, "Getting ranking artwork")
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
 
         // Filtering
         Log.i(LOG_TAG, "Filtering ranking artwork")
-        val rankingArtwork = filterArtworkRanking(
-            contents.artworks,
-            sharedPrefs.getBoolean("pref_showManga", false),
-            sharedPrefs.getStringSet("pref_rankingFilterSelect", setOf("0")) ?: setOf("0"),
-            sharedPrefs.getString("pref_aspectRatioSelect", "0")?.toInt() ?: 0,
-            sharedPrefs.getInt("prefSlider_minViews", 0),
-            sharedPrefs.getInt("prefSlider_minimumWidth", 0),
-            sharedPrefs.getInt("prefSlider_minimumHeight", 0)
-        )
+        val rankingArtwork = filter.filter(contents.artworks).also {
+            if (it.isEmpty()) {
+                throw FilterMatchNotFoundException("All ranking artworks iterated over, fetching a new Contents")
+            }
+            Log.d(LOG_TAG, "${it.size} artworks remaining after filtering")
+        }.random()
+        // Only the first page's size is known, later pages are assumed to match it
+        val variant = resolutionPolicy.select(rankingArtwork.width, rankingArtwork.height)
+        val page = getCandidatePages(rankingArtwork.illust_id, getPageCount(rankingArtwork), variant).random()
+        addKnownPage(rankingArtwork.illust_id, page)
         Log.i(LOG_TAG, "Filtering ranking artwork completed")
 
         val attribution = contents.date.run {
@@ -494,20 +694,29 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
             }
         ).plus(rankingArtwork.rank)
 
-        val token = rankingArtwork.illust_id.toString()
+        return { buildArtworkRanking(rankingArtwork, page, variant, attribution) }
+    }
 
-        // this may be null
-        // if it's null, then we have experienced an issue getting remote file extensions
-        val remoteFileExtension = getRemoteFileExtension(rankingArtwork.url)
-        val localUri = downloadImage(
-            remoteFileExtension,
-            token,
-            sharedPrefs.getBoolean("pref_storeInExtStorage", false)
-        )
-        // TODO file size limit filter
-        // TODO handle this null
-        // what does a null mean here
-        remoteFileExtension!!.close()
+    // The ranking only reports a page count, the thumbnail URL is always that of the first page
+    private fun getPageCount(rankingArtwork: RankingArtwork): Int = rankingArtwork.illust_page_count.coerceAtLeast(1)
+
+    private suspend fun buildArtworkRanking(
+        rankingArtwork: RankingArtwork,
+        page: Int,
+        variant: ImageVariant,
+        attribution: String
+    ): Artwork {
+        val token = ArtworkToken.create(rankingArtwork.illust_id, page)
+        // Every page's images sit next to each other, only the _p<page> part of the file name differs
+        val thumbnailUrl = rankingArtwork.url.replace("_p0_", "_p${page}_")
+
+        // Scaled down variants are always JPEGs, so only the original needs its extension found
+        val localUri = findStoredImage(rankingArtwork.illust_id, page, token)
+            ?: variant.getUrl(thumbnailUrl)
+                ?.let { downloadVariant(it, variant, rankingArtwork.illust_id, page, token) }
+            ?: recordingOversized(rankingArtwork.illust_id, page, ImageVariant.ORIGINAL) {
+                downloadRemoteFileExtension(thumbnailUrl, rankingArtwork.illust_id, page, token)
+            }
 
         Log.i(LOG_TAG, "Getting ranking artwork completed")
         return Artwork.Builder()
@@ -516,74 +725,88 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
             .attribution(attribution)
             .persistentUri(localUri)
             .token(token)
-            .webUri(Uri.parse(PixivProviderConst.PIXIV_ARTWORK_URL + token))
+            .webUri(Uri.parse(PixivProviderConst.PIXIV_ARTWORK_URL + rankingArtwork.illust_id))
             .metadata(rankingArtwork.user_id.toString()) // Allows blocking of artist
             .build()
     }
 
-    private fun filterArtworkRanking(
-        artworkList: List<RankingArtwork>,
-        settingShowManga: Boolean,
-        settingNsfwSelection: Set<String>,
-        settingAspectRatio: Int,
-        settingMinimumViewCount: Int,
-        settingMinimumWidth: Int,
-        settingMinimumHeight: Int
-    ): RankingArtwork {
-        val predicates: List<(RankingArtwork) -> Boolean> = listOfNotNull(
-            { !isDuplicateArtwork(it.illust_id) },
-            { isEnoughViews(it.view_count, settingMinimumViewCount) },
-            { settingShowManga || !settingShowManga && it.illust_type == 0 },
-            { isDesiredAspectRatio(it.width, it.height, settingAspectRatio) },
-            {
-                isDesiredPixelSize(
-                    it.width,
-                    it.height,
-                    settingMinimumHeight,
-                    settingMinimumWidth,
-                    settingAspectRatio
-                )
-            },
-            { !isBeenDeleted(it.illust_id) },
-            { settingNsfwSelection.contains(it.illust_content_type.sexual.toString()) },
+    // Created once per run, so the filter can learn the cost of each predicate across pages
+    // Predicates that would let every artwork through with the current settings are left out entirely
+    private fun createRankingFilter(): ArtworkFilter<RankingArtwork> {
+        val settingShowManga = settings.showManga
+        val settingNsfwSelection = settings.rankingNsfwSelection
+        val settingAspectRatio = settings.aspectRatio
+        val settingMinimumViewCount = settings.minimumViews
+        val settingMinimumWidth = settings.minimumWidth
+        val settingMinimumHeight = settings.minimumHeight
+
+        return ArtworkFilter<RankingArtwork>("Ranking").apply {
+            add("duplicate") { hasUnknownPage(it.illust_id, getPageCount(it)) }
+            if (settingMinimumViewCount > 0) {
+                add("views") { isEnoughViews(it.view_count, settingMinimumViewCount) }
+            }
+            if (!settingShowManga) {
+                add("manga") { it.illust_type == 0 }
+            }
+            if (settingAspectRatio != 0) {
+                add("aspectRatio") { isDesiredAspectRatio(it.width, it.height, settingAspectRatio) }
+            }
+            if (settingMinimumWidth > 0 || settingMinimumHeight > 0) {
+                add("pixelSize") {
+                    isDesiredPixelSize(
+                        it.width,
+                        it.height,
+                        settingMinimumHeight,
+                        settingMinimumWidth,
+                        settingAspectRatio
+                    )
+                }
+            }
+            add("deleted") { !isBeenDeleted(it.illust_id) }
+            if (settings.maxFileSize > 0) {
+                add("oversized") {
+                    getCandidatePages(
+                        it.illust_id,
+                        getPageCount(it),
+                        resolutionPolicy.select(it.width, it.height)
+                    ).isNotEmpty()
+                }
+            }
             // There are only two NSFW levels. If user has selected both, don't bother filtering NSFW, they want everything
-            { settingNsfwSelection.size == 2 || settingNsfwSelection.contains(it.illust_content_type.sexual.toString()) },
-            { !hasArtistBeenBlocked(it.user_id) },
-        )
-
-        // Absolute black magic, something to do with Kotlin predicates, I no longer understand this
-        val filteredArtworksList = artworkList.filter { candidate ->
-            predicates.all { it(candidate) }
-        }.also {
-            if (it.isEmpty()) {
-                throw FilterMatchNotFoundException("All ranking artworks iterated over, fetching a new Contents")
+            if (settingNsfwSelection.size != 2) {
+                add("nsfw") { settingNsfwSelection.contains(it.illust_content_type.sexual.toString()) }
             }
-            Log.d(LOG_TAG, "${it.size} artworks remaining before NSFW filtering")
+            add("blockedArtist") { !hasArtistBeenBlocked(it.user_id) }
         }
-
-        return filteredArtworksList.random()
     }
 
-    private fun buildArtworkAuth(
+    // Auth counterpart to selectArtworkRanking()
+    private fun selectArtworkAuth(
         artworkList: List<AuthArtwork>,
-        isRecommended: Boolean
-    ): Artwork {
+        filter: ArtworkFilter<AuthArtwork>
+    ): suspend () -> Artwork {
         Log.i(LOG_TAG, "Getting auth artwork")
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
 
         Log.i(LOG_TAG, "Filtering auth artwork")
-        val selectedArtwork = filterArtworkAuth(
-            artworkList,
-            sharedPrefs.getBoolean("pref_showManga", false),
-            sharedPrefs.getStringSet("pref_authFilterSelect", setOf("2")) ?: setOf("2"),
-            sharedPrefs.getString("pref_aspectRatioSelect", "0")?.toInt() ?: 0,
-            sharedPrefs.getInt("prefSlider_minViews", 0),
-            isRecommended,
-            sharedPrefs.getInt("prefSlider_minimumWidth", 0),
-            sharedPrefs.getInt("prefSlider_minimumHeight", 0)
-        )
+        val selectedArtwork = filter.filter(artworkList).also {
+            if (it.isEmpty()) {
+                throw FilterMatchNotFoundException("All auth artworks iterated over, fetching a new Illusts")
+            }
+            Log.d(LOG_TAG, "${it.size} artworks remaining after filtering")
+        }.random()
+        // Only the first page's size is known, later pages are assumed to match it
+        val variant = resolutionPolicy.select(selectedArtwork.width, selectedArtwork.height)
+        val page = getCandidatePages(selectedArtwork.id, getPageCount(selectedArtwork), variant).random()
+        addKnownPage(selectedArtwork.id, page)
         Log.i(LOG_TAG, "Filtering auth artwork completed")
 
+        return { buildArtworkAuth(selectedArtwork, page, variant) }
+    }
+
+    // Single page artworks have no meta_pages
+    private fun getPageCount(artwork: AuthArtwork): Int = artwork.meta_pages.size.coerceAtLeast(1)
+
+    private suspend fun buildArtworkAuth(selectedArtwork: AuthArtwork, page: Int, variant: ImageVariant): Artwork {
         // Variables for submitting to Muzei
         val imageUrl: String? = if (selectedArtwork.meta_pages.isEmpty()) {
             selectedArtwork
@@ -591,41 +814,33 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
                 .original_image_url
         } else {
             selectedArtwork
-                .meta_pages[0]
+                .meta_pages[page]
                 .image_urls
                 .original
         }
 
-        val useCeuiLiSAWay = true
-        val imageDataResponse = if (useCeuiLiSAWay) {
-            /**
-             * new code, replace url host to ip address and download
-             * this way runs well on my phone
-             */
-            val finalUrl = HostManager.get().replaceUrl(imageUrl)
-            Log.d("finalUrl", finalUrl)
-            val request: Request = Request.Builder().url(finalUrl).get().build()
-            val imageHttpClient = OkHttpSingleton.getInstance().newBuilder()
-                //.addInterceptor(NetworkTrafficLogInterceptor())
-                .addInterceptor(StandardImageHttpHeaderInterceptor())
-                .addInterceptor(ImageIntegrityInterceptor())
-                .build()
-
-            imageHttpClient.newCall(request).execute().body
-
+        // Every page has its own image_urls, the top level one only describes the first page
+        val masterUrl: String? = if (selectedArtwork.meta_pages.isEmpty()) {
+            selectedArtwork.image_urls.large
         } else {
-            // its your original code
-            val service =
-                RestClient.getRetrofitImageInstance().create(PixivImageDownloadService::class.java)
-            val call = service.downloadImage(imageUrl)
-            call.execute().body()
+            selectedArtwork.meta_pages[page].image_urls.large
         }
 
-        val token = selectedArtwork.id.toString()
-        val localUri = downloadImage(
-            imageDataResponse, token, sharedPrefs.getBoolean("pref_storeInExtStorage", false)
-        )
-        imageDataResponse!!.close()
+        /**
+         * replace url host to ip address and download
+         * this way runs well on my phone
+         */
+        val finalUrl = HostManager.get().replaceUrl(imageUrl)
+        Log.d("finalUrl", finalUrl)
+
+        val token = ArtworkToken.create(selectedArtwork.id, page)
+        val localUri = findStoredImage(selectedArtwork.id, page, token)
+            ?: masterUrl?.let { variant.getUrl(it) }
+                ?.let { downloadVariant(it, variant, selectedArtwork.id, page, token) }
+            ?: recordingOversized(selectedArtwork.id, page, ImageVariant.ORIGINAL) {
+                downloadImage(finalUrl, selectedArtwork.id, page, token, settings.storeInExtStorage)
+            }
+            ?: throw CorruptFileException("Could not download $finalUrl")
 
         Log.i(LOG_TAG, "Getting auth artwork completed")
         return Artwork.Builder()
@@ -633,175 +848,233 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
             .byline(selectedArtwork.user.name)
             .persistentUri(localUri)
             .token(token)
-            .webUri(Uri.parse(PixivProviderConst.PIXIV_ARTWORK_URL + token))
+            .webUri(Uri.parse(PixivProviderConst.PIXIV_ARTWORK_URL + selectedArtwork.id))
             .metadata(selectedArtwork.user.id.toString()) // Allows blocking of artist
             .build()
     }
 
-    private fun filterArtworkAuth(
-        artworkList: List<AuthArtwork>,
-        settingShowManga: Boolean,
-        settingNsfwSelection: Set<String>,
-        settingAspectRatio: Int,
-        settingMinimumViews: Int,
-        settingIsRecommended: Boolean,
-        settingMinimumWidth: Int,
-        settingMinimumHeight: Int
-    ): AuthArtwork {
-        val predicates: List<(AuthArtwork) -> Boolean> = listOfNotNull(
-            { !isDuplicateArtwork(it.id) },
-            { settingShowManga || !settingShowManga && it.type != "manga" },
-            { isDesiredAspectRatio(it.width, it.height, settingAspectRatio) },
-            {
-                isDesiredPixelSize(
-                    it.width,
-                    it.height,
-                    settingMinimumWidth,
-                    settingMinimumHeight,
-                    settingAspectRatio
-                )
-            },
-            { isEnoughViews(it.total_view, settingMinimumViews) },
-            { !isBeenDeleted(it.id) },
-            {
-                settingIsRecommended || settingNsfwSelection.size == 4 ||
-                        settingNsfwSelection.contains(it.sanity_level.toString()) ||
-                        (settingNsfwSelection.contains("8") && it.x_restrict == 1)
-            },
-            { !hasArtistBeenBlocked(it.user.id) }
+    private fun createAuthFilter(isRecommended: Boolean): ArtworkFilter<AuthArtwork> {
+        val settingShowManga = settings.showManga
+        val settingNsfwSelection = settings.authNsfwSelection
+        val settingAspectRatio = settings.aspectRatio
+        val settingMinimumViews = settings.minimumViews
+        val settingMinimumWidth = settings.minimumWidth
+        val settingMinimumHeight = settings.minimumHeight
+
+        return ArtworkFilter<AuthArtwork>("Auth").apply {
+            add("duplicate") { hasUnknownPage(it.id, getPageCount(it)) }
+            if (!settingShowManga) {
+                add("manga") { it.type != "manga" }
+            }
+            if (settingAspectRatio != 0) {
+                add("aspectRatio") { isDesiredAspectRatio(it.width, it.height, settingAspectRatio) }
+            }
+            if (settingMinimumWidth > 0 || settingMinimumHeight > 0) {
+                add("pixelSize") {
+                    isDesiredPixelSize(
+                        it.width,
+                        it.height,
+                        settingMinimumWidth,
+                        settingMinimumHeight,
+                        settingAspectRatio
+                    )
+                }
+            }
+            if (settingMinimumViews > 0) {
+                add("views") { isEnoughViews(it.total_view, settingMinimumViews) }
+            }
+            add("deleted") { !isBeenDeleted(it.id) }
+            if (settings.maxFileSize > 0) {
+                add("oversized") {
+                    getCandidatePages(it.id, getPageCount(it), resolutionPolicy.select(it.width, it.height))
+                        .isNotEmpty()
+                }
+            }
             // If feed mode is recommended or user has selected all possible NSFW levels, then don't bother filtering NSFW
             // Recommended only provides SFW artwork
-        )
-
-        val filteredArtworksList = artworkList.filter { candidate ->
-            predicates.all { it(candidate) }
-        }.also {
-            if (it.isEmpty()) {
-                throw FilterMatchNotFoundException("All auth artworks iterated over, fetching a new Illusts")
+            if (!isRecommended && settingNsfwSelection.size != 4) {
+                add("nsfw") {
+                    settingNsfwSelection.contains(it.sanity_level.toString()) ||
+                            (settingNsfwSelection.contains("8") && it.x_restrict == 1)
+                }
             }
-            Log.d(LOG_TAG, "${it.size} artworks remaining before NSFW filtering")
+            add("blockedArtist") { !hasArtistBeenBlocked(it.user.id) }
         }
-        return filteredArtworksList.random()
     }
 
-    private fun getArtworksBookmark(): List<Artwork> {
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
-
-        // If we do not know the oldest bookmark id for the currently signed in account
-        if (sharedPrefs.getLong("oldestMaxBookmarkId", 0L) == 0L) {
-            findBookmarkStartTime(sharedPrefs.getString("userId", "")!!)
+    /*
+    * Selection and downloading are pipelined
+    * Candidates are filtered and selected one at a time on the worker thread, as filtering is cheap and
+    * every selection must see the ones made before it
+    * Each selected artwork is then downloaded on its own coroutine, with at most
+    * prefSlider_maxConcurrentDownloads downloads in flight at once
+    *
+    * The usual fallbacks still apply:
+    *   FilterMatchNotFoundException: fetchNewCandidates() is called and selection carries on
+    *     If it returns false the feed is exhausted, and whatever has been downloaded so far is returned
+    *   CorruptFileException: that download is dropped, and a replacement is selected once the current round completes
+    *   IOException: the same as a corrupt file, so one timed out download can't throw away all the others
+    *     If every download of a round fails this way the connection is most likely gone, and selection stops
+    *     The run only fails if nothing was downloaded at all
+    */
+    private suspend fun downloadArtworks(
+        numArtworksToDownload: Int,
+        selectArtwork: () -> suspend () -> Artwork,
+        fetchNewCandidates: suspend () -> Boolean
+    ): List<Artwork> {
+        val downloadPermits = Semaphore(settings.maxConcurrentDownloads)
+
+        return coroutineScope {
+            val artworkList = mutableListOf<Artwork>()
+            var exhausted = false
+            while (artworkList.size < numArtworksToDownload && !exhausted) {
+                val downloads = mutableListOf<Deferred<Artwork?>>()
+                val networkFailures = ConcurrentLinkedQueue<IOException>()
+                while (downloads.size < numArtworksToDownload - artworkList.size) {
+                    val download = try {
+                        selectArtwork()
+                    } catch (e: FilterMatchNotFoundException) {
+                        if (!fetchNewCandidates()) {
+                            Log.i(LOG_TAG, "No candidates left, keeping ${artworkList.size + downloads.size} selected artworks")
+                            exhausted = true
+                            break
+                        }
+                        continue
+                    }
+                    downloads.add(async {
+                        downloadPermits.withPermit {
+                            try {
+                                download()
+                            } catch (e: CorruptFileException) {
+                                Log.i(LOG_TAG, "Corrupt artwork found")
+                                null
+                            } catch (e: ImageTooLargeException) {
+                                null
+                            } catch (e: IOException) {
+                                Log.w(LOG_TAG, "Artwork download failed", e)
+                                networkFailures.add(e)
+                                null
+                            }
+                        }
+                    })
+                }
+                artworkList.addAll(downloads.awaitAll().filterNotNull())
+                if (downloads.isNotEmpty() && networkFailures.size == downloads.size) {
+                    if (artworkList.isEmpty()) {
+                        throw networkFailures.first()
+                    }
+                    Log.i(LOG_TAG, "Every download failed, keeping the ${artworkList.size} artworks already downloaded")
+                    break
+                }
+            }
+            artworkList
         }
+    }
 
-        val bookmarksHelper = BookmarksHelper(sharedPrefs.getString("userId", "")!!)
-
-        // find the lower bound
-        val oldestBookmarkId = sharedPrefs.getLong("oldestMaxBookmarkId", 0)
-        // Find the upper bound
-        // Multiply by 1.01 as a fudge factor to ensure we get the latest artwork
-        val currentBookmarkId: Long =
-            (bookmarksHelper.getNewPublicBookmarks().next_url?.substringAfter("max_bookmark_id=")!!
-                .toLong() * 1.01).toLong()
-
-        var bookmarkArtworks =
-            bookmarksHelper.getNewPublicBookmarks(
-                (oldestBookmarkId..currentBookmarkId).random().toString()
-            ).artworks
-        val artworkList = mutableListOf<Artwork>()
-
-        while (artworkList.size < sharedPrefs.getInt("prefSlider_numToDownload", 2)) {
-            val artwork: Artwork
+    // Bookmarks are picked from the local BookmarkMirror, so the only network traffic here is the image download
+    // Every bookmark is equally likely to be chosen
+    // Returns null if there is nothing mirrored yet and building the mirror failed, so the work is retried later
+    private suspend fun getArtworksBookmark(numArtworksToDownload: Int): List<Artwork>? {
+        val restricts = BookmarkMirror.getRestricts(settings.includePrivateBookmarks)
+        if (!BookmarkMirror.isSynced(applicationContext, settings.userId, restricts)) {
+            // Nothing to pick from until the mirror has been built, after this BookmarkSyncWorker keeps it up to date
             try {
-                artwork = buildArtworkAuth(bookmarkArtworks, false)
-            } catch (e: FilterMatchNotFoundException) {
-                Log.i(LOG_TAG, "Fetching new bookmarks")
-                bookmarkArtworks = bookmarksHelper.getNextBookmarks().artworks
-                continue
-            } catch (e: CorruptFileException) {
-                Log.i(LOG_TAG, "Corrupt artwork found")
-                continue
+                BookmarkMirror.sync(applicationContext, settings.userId, restricts, reconcile = false)
+            } catch (e: IOException) {
+                // e.g. rate limited part way through, make do with whatever lists were already mirrored
+                Log.w(LOG_TAG, "Could not build the bookmark mirror", e)
             }
-            artworkList.add(artwork)
         }
+        BookmarkMirror.enqueueSync(applicationContext)
 
-        return artworkList
+        val illustIds = BookmarkMirror.getShuffledIllustIds(applicationContext, settings.userId, restricts)
+        if (illustIds.isEmpty() && !BookmarkMirror.isSynced(applicationContext, settings.userId, restricts)) {
+            return null
+        }
+        val batches = illustIds.chunked(BOOKMARK_BATCH_SIZE).iterator()
+        var bookmarkArtworks = emptyList<AuthArtwork>()
+
+        val filter = createAuthFilter(false)
+        return downloadArtworks(
+            numArtworksToDownload,
+            selectArtwork = { selectArtworkAuth(bookmarkArtworks, filter) },
+            fetchNewCandidates = {
+                // Once every bookmark has been tried, settle for the ones already selected
+                if (batches.hasNext()) {
+                    bookmarkArtworks = BookmarkMirror.getArtworks(applicationContext, settings.userId, batches.next())
+                    true
+                } else {
+                    false
+                }
+            }
+        ).also { filter.logStatistics(LOG_TAG) }
     }
 
     // Bookmarks artworks are handled in a separate function
     // Part of the reason is that Pixiv itself has different API surface for bookmarks
     // And must be handled accordingly
-    private fun getArtworksAuth(updateMode: String): List<Artwork> {
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
+    private suspend fun getArtworksAuth(updateMode: String, numArtworksToDownload: Int): List<Artwork> {
         // Determines if any extra information is needed, and passes it along
 
         // {"follow", "bookmark", "tag_search", "artist", "recommended"};
         val illustsHelper = when (updateMode) {
-            "follow" -> IllustsHelper(updateMode)
-            "recommended" -> IllustsHelper(updateMode)
-            "artist" -> IllustsHelper(updateMode, artist = sharedPrefs.getString("pref_artistId", "") ?: "")
+            "follow" -> IllustsHelper(applicationContext, updateMode, settings.userId)
+            "recommended" -> IllustsHelper(applicationContext, updateMode, settings.userId)
+            "artist" -> IllustsHelper(applicationContext, updateMode, settings.userId, artist = settings.artistId)
             "tag_search" -> IllustsHelper(
+                applicationContext,
                 updateMode,
-                tag = sharedPrefs.getString("pref_tagSearch", "") ?: "",
-                language = sharedPrefs.getString("pref_tagLanguage", "") ?: ""
+                settings.userId,
+                tag = settings.tagSearch,
+                language = settings.tagLanguage
             )
 
-            else -> IllustsHelper("follow")
+            else -> IllustsHelper(applicationContext, "follow", settings.userId)
         }
         var authArtworkList = illustsHelper.getNewIllusts().artworks
-        val artworkList = mutableListOf<Artwork>()
 
-        while (artworkList.size < sharedPrefs.getInt("prefSlider_numToDownload", 2)) {
-            val artwork: Artwork
-            try {
-                artwork = buildArtworkAuth(authArtworkList, updateMode == "recommended")
-            } catch (e: FilterMatchNotFoundException) {
+        val filter = createAuthFilter(updateMode == "recommended")
+        return downloadArtworks(
+            numArtworksToDownload,
+            selectArtwork = { selectArtworkAuth(authArtworkList, filter) },
+            fetchNewCandidates = {
                 Log.i(LOG_TAG, "Fetching new bookmarks")
                 authArtworkList = illustsHelper.getNextIllusts().artworks
-                continue
-            } catch (e: CorruptFileException) {
-                Log.i(LOG_TAG, "Corrupt artwork found")
-                continue
+                true
             }
-            artworkList.add(artwork)
-        }
-        return artworkList
+        ).also { filter.logStatistics(LOG_TAG) }
     }
 
-    private fun getArtworksRanking(updateMode: String): List<Artwork> {
-        val numArtworksToDownload =
-            PreferenceManager.getDefaultSharedPreferences(applicationContext).getInt("prefSlider_numToDownload", 2)
+    private suspend fun getArtworksRanking(updateMode: String, numArtworksToDownload: Int): List<Artwork> {
         // contentsHelper is stateful, stores a copy of Contents, and can fetch a new one if needed
-        val contentsHelper = ContentsHelper(updateMode)
+        val contentsHelper = ContentsHelper(applicationContext, updateMode)
         var contents = contentsHelper.getNewContents()
-        return mutableListOf<Artwork>().also {
-            while (it.size < numArtworksToDownload) {
-                val artwork: Artwork
-                try {
-                    artwork = buildArtworkRanking(contents)
-                } catch (e: FilterMatchNotFoundException) {
-                    Log.i(LOG_TAG, "Fetching new contents")
-                    contents = contentsHelper.getNextContents()
-                    continue
-                } catch (e: CorruptFileException) {
-                    Log.i(LOG_TAG, "Corrupt artwork found")
-                    continue
-                }
-                it.add(artwork)
+
+        val filter = createRankingFilter()
+        return downloadArtworks(
+            numArtworksToDownload,
+            selectArtwork = { selectArtworkRanking(contents, filter) },
+            fetchNewCandidates = {
+                Log.i(LOG_TAG, "Fetching new contents")
+                contents = contentsHelper.getNextContents()
+                true
             }
-        }
+        ).also { filter.logStatistics(LOG_TAG) }
     }
 
     // Returns a list of Artworks to Muzei
     //
-    private fun getArtworks(): List<Artwork>? {
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
-        var updateMode = sharedPrefs.getString("pref_updateMode", "daily") ?: "daily"
+    private suspend fun getArtworks(numArtworksToDownload: Int): List<Artwork>? {
+        var updateMode = settings.updateMode
 
         // Gets an up to date access token if required
         if (AUTH_MODES.contains(updateMode)) {
             try {
                 getAccessToken()
             } catch (e: AccessTokenAcquisitionException) {
-                updateMode = authHandleAuthFailure(sharedPrefs) ?: return null
+                updateMode = authHandleAuthFailure(
+                    PreferenceManager.getDefaultSharedPreferences(applicationContext)
+                ) ?: return null
             }
         }
 
@@ -810,9 +1083,9 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
         // Thus two identical if statements are required
         Log.i(LOG_TAG, "Feed mode: $updateMode")
         val artworkList: List<Artwork> = when (updateMode) {
-            "bookmark" -> getArtworksBookmark()
-            in AUTH_MODES -> getArtworksAuth(updateMode)
-            else -> getArtworksRanking(updateMode)
+            "bookmark" -> getArtworksBookmark(numArtworksToDownload) ?: return null
+            in AUTH_MODES -> getArtworksAuth(updateMode, numArtworksToDownload)
+            else -> getArtworksRanking(updateMode, numArtworksToDownload)
         }
         Log.i(LOG_TAG, "Submitting ${artworkList.size} artworks")
         return artworkList
@@ -864,18 +1137,59 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
 
     // Entry method, called by Muzei / Workmanager
     // Any critical errors bubble up as a null result, resulting in Muzei calling this function again later
-    override fun doWork(): Result {
+    // If WorkManager stops the work, cancellation propagates into every in-flight request and file write
+    // Only one load runs at a time, whether it is for Muzei or for the backlog
+    override suspend fun doWork(): Result = loadMutex.withLock { load() }
+
+    private suspend fun load(): Result = withContext(Dispatchers.IO) {
         Log.i(LOG_TAG, "Starting work")
-        with(getProviderClient(applicationContext, PixivArtProvider::class.java)) {
-            val artworks = getArtworks() ?: return Result.retry()
-            if (clearArtwork) {
-                clearArtwork = false
-                setArtwork(artworks)
-            } else {
-                addArtwork(artworks)
+        val startedTime = System.currentTimeMillis()
+        settings = ProviderSettings.get(applicationContext)
+        PartialDownload.deleteStale(getPartialDirectory(settings.storeInExtStorage))
+        if (settings.storeInExtStorage && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            ArtworkBlobStore.indexMediaStoreImages(applicationContext)
+        }
+        val fillBacklog = inputData.getBoolean(KEY_FILL_BACKLOG, false)
+        val numArtworksToDownload = if (fillBacklog) {
+            ArtworkBacklog.getShortfall(applicationContext)
+        } else {
+            settings.numToDownload
+        }
+        if (numArtworksToDownload == 0) {
+            Log.i(LOG_TAG, "Backlog already full")
+            return@withContext Result.success()
+        }
+
+        val artworks = getArtworks(numArtworksToDownload) ?: return@withContext Result.retry()
+        // Don't submit anything if we were stopped while the last download was finishing
+        ensureActive()
+        // An exhausted feed with nothing left that passes the filters must not clear what Muzei already has
+        if (artworks.isEmpty()) {
+            Log.i(LOG_TAG, "No artworks to submit")
+            return@withContext Result.success()
+        }
+        if (fillBacklog) {
+            ArtworkBacklog.add(applicationContext, artworks, startedTime)
+        } else {
+            with(getProviderClient(applicationContext, PixivArtProvider::class.java)) {
+                if (clearArtwork) {
+                    clearArtwork = false
+                    setArtwork(artworks)
+                } else {
+                    addArtwork(artworks)
+                }
             }
+            // Muzei has been served over the network this time, get ahead for next time
+            ArtworkBacklog.enqueueRefill(applicationContext)
+        }
+        if (settings.autoClearMode) {
+            ArtworkCache.trim(applicationContext)
+        }
+        Log.d(LOG_TAG, "Connections so far:\n${ConnectionMetrics.summarize()}")
+        if (settings.enableNetworkBypass) {
+            Log.d(LOG_TAG, "TLS so far: ${RubySSLSocketFactory.summarize()}")
         }
         Log.i(LOG_TAG, "Work completed")
-        return Result.success()
+        Result.success()
     }
 }
@@ -0,0 +1,131 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider
+
+import android.content.Context
+import android.content.SharedPreferences
+import androidx.preference.PreferenceManager
+import com.antony.muzei.pixiv.util.HostManager
+
+/*
+ * Typed, immutable copy of the preferences read while fetching and downloading artwork
+ *
+ * Taken once at the start of each worker run and used for the rest of it, so the filters and per URL code
+ * don't look up and parse the same keys over and over
+ * The cached snapshot is dropped whenever any preference changes, and the next call to get() reads them afresh
+ */
+data class ProviderSettings(
+    val updateMode: String,
+    val numToDownload: Int,
+    val maxConcurrentDownloads: Int,
+    // In bytes, zero means no limit
+    val maxFileSize: Long,
+    val fitResolutionToScreen: Boolean,
+    val originalsOnUnmetered: Boolean,
+    // One of "none", "jpeg", "webp" or "png"
+    val ingestFormat: String,
+    val ingestQuality: Int,
+    val autoCrop: Boolean,
+    val autoClearMode: Boolean,
+    // In bytes
+    val cacheQuota: Long,
+    val showManga: Boolean,
+    val rankingNsfwSelection: Set<String>,
+    val authNsfwSelection: Set<String>,
+    val aspectRatio: Int,
+    val minimumViews: Int,
+    val minimumWidth: Int,
+    val minimumHeight: Int,
+    val artistId: String,
+    val tagSearch: String,
+    val tagLanguage: String,
+    val userId: String,
+    val includePrivateBookmarks: Boolean,
+    val storeInExtStorage: Boolean,
+    val selectWhichExtStorage: String,
+    val usePixivCat: Boolean,
+    val pixivProxyHost: String,
+    val enableNetworkBypass: Boolean
+) {
+    companion object {
+        @Volatile
+        private var snapshot: ProviderSettings? = null
+
+        // Bumped on every change, so a snapshot read while a preference was changing is never kept
+        @Volatile
+        private var generation = 0
+
+        // SharedPreferences only keeps a weak reference to its listeners, so we have to hold on to it ourselves
+        // Listeners are only ever called on the main thread, so this is the sole writer of generation
+        private val invalidateListener = SharedPreferences.OnSharedPreferenceChangeListener { _, _ ->
+            generation++
+            snapshot = null
+        }
+        private var listenerRegistered = false
+
+        @JvmStatic
+        @Synchronized
+        fun get(context: Context): ProviderSettings {
+            snapshot?.let { return it }
+
+            val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context.applicationContext)
+            if (!listenerRegistered) {
+                sharedPrefs.registerOnSharedPreferenceChangeListener(invalidateListener)
+                listenerRegistered = true
+            }
+            val readGeneration = generation
+            return read(sharedPrefs).also {
+                if (generation == readGeneration) {
+                    snapshot = it
+                }
+            }
+        }
+
+        private fun read(sharedPrefs: SharedPreferences) = ProviderSettings(
+            updateMode = sharedPrefs.getString("pref_updateMode", "daily") ?: "daily",
+            numToDownload = sharedPrefs.getInt("prefSlider_numToDownload", 2),
+            maxConcurrentDownloads = sharedPrefs.getInt("prefSlider_maxConcurrentDownloads", 3),
+            maxFileSize = sharedPrefs.getInt("prefSlider_maxFileSize", 0) * 1024L * 1024L,
+            fitResolutionToScreen = sharedPrefs.getBoolean("pref_fitResolutionToScreen", true),
+            originalsOnUnmetered = sharedPrefs.getBoolean("pref_originalsOnUnmetered", false),
+            ingestFormat = sharedPrefs.getString("pref_ingestFormat", "jpeg") ?: "jpeg",
+            ingestQuality = sharedPrefs.getInt("prefSlider_ingestQuality", 90),
+            autoCrop = sharedPrefs.getBoolean("pref_autoCrop", false),
+            autoClearMode = sharedPrefs.getBoolean("pref_autoClearMode", false),
+            cacheQuota = sharedPrefs.getInt("prefSlider_cacheQuota", 10) * 50L * 1024L * 1024L,
+            showManga = sharedPrefs.getBoolean("pref_showManga", false),
+            rankingNsfwSelection = sharedPrefs.getStringSet("pref_rankingFilterSelect", setOf("0"))?.toSet()
+                ?: setOf("0"),
+            authNsfwSelection = sharedPrefs.getStringSet("pref_authFilterSelect", setOf("2"))?.toSet() ?: setOf("2"),
+            aspectRatio = sharedPrefs.getString("pref_aspectRatioSelect", "0")?.toInt() ?: 0,
+            minimumViews = sharedPrefs.getInt("prefSlider_minViews", 0),
+            minimumWidth = sharedPrefs.getInt("prefSlider_minimumWidth", 0),
+            minimumHeight = sharedPrefs.getInt("prefSlider_minimumHeight", 0),
+            artistId = sharedPrefs.getString("pref_artistId", "") ?: "",
+            tagSearch = sharedPrefs.getString("pref_tagSearch", "") ?: "",
+            tagLanguage = sharedPrefs.getString("pref_tagLanguage", "") ?: "",
+            userId = sharedPrefs.getString("userId", "") ?: "",
+            includePrivateBookmarks = sharedPrefs.getBoolean("pref_includePrivateBookmarks", false),
+            storeInExtStorage = sharedPrefs.getBoolean("pref_storeInExtStorage", false),
+            selectWhichExtStorage = sharedPrefs.getString("pref_selectWhichExtStorage", "phone") ?: "phone",
+            usePixivCat = sharedPrefs.getBoolean("pref_usePixivCat", false),
+            pixivProxyHost = sharedPrefs.getString("pref_pixivProxyHost", HostManager.HOST_NEW)
+                ?: HostManager.HOST_NEW,
+            enableNetworkBypass = sharedPrefs.getBoolean("pref_enableNetworkBypass", false)
+        )
+    }
+}
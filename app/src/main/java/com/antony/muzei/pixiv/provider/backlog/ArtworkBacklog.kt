@@ -0,0 +1,179 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.backlog
+
+import android.content.Context
+import android.net.Uri
+import android.util.Log
+import androidx.annotation.WorkerThread
+import androidx.preference.PreferenceManager
+import androidx.work.BackoffPolicy
+import androidx.work.Constraints
+import androidx.work.ExistingWorkPolicy
+import androidx.work.NetworkType
+import androidx.work.OneTimeWorkRequest
+import androidx.work.WorkManager
+import androidx.work.workDataOf
+import com.antony.muzei.pixiv.AppDatabase
+import com.antony.muzei.pixiv.provider.PixivArtProvider
+import com.antony.muzei.pixiv.provider.PixivArtWorker
+import com.google.android.apps.muzei.api.provider.Artwork
+import com.google.android.apps.muzei.api.provider.ProviderContract
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.withLock
+import java.io.FileNotFoundException
+import java.util.concurrent.TimeUnit
+
+/*
+ * Keeps a number of fully downloaded artworks on hand, ahead of what Muzei has been given
+ *
+ * When Muzei runs low, promote() moves artworks from the backlog straight into the provider, so nothing
+ * on that path has to touch the network
+ * The backlog is then refilled by PixivArtWorker in the background, but only once the device is on
+ * an unmetered network and/or charging, depending on the user's preferences
+ */
+object ArtworkBacklog {
+    private const val LOG_TAG = "ANTONY_BACKLOG"
+    const val WORKER_TAG = "ANTONY_BACKLOG"
+
+    // When the backlog was last cleared, anything selected before then was picked under the old settings
+    private const val PREF_CLEARED_TIME = "backlogClearedTime"
+
+    private fun getDepth(context: Context): Int =
+        PreferenceManager.getDefaultSharedPreferences(context).getInt("prefSlider_backlogDepth", 3)
+
+    // Number of artworks needed to bring the backlog up to its configured depth
+    @WorkerThread
+    fun getShortfall(context: Context): Int {
+        val count = AppDatabase.getInstance(context).backlogArtworkDao().getCount()
+        return (getDepth(context) - count).coerceAtLeast(0)
+    }
+
+    @WorkerThread
+    fun getTokens(context: Context): List<String> =
+        AppDatabase.getInstance(context).backlogArtworkDao().getAllTokens()
+
+    // selectedTime is when the load that found these artworks started, so a clear() while it was running discards them
+    @WorkerThread
+    fun add(context: Context, artworks: List<Artwork>, selectedTime: Long) {
+        AppDatabase.getInstance(context).backlogArtworkDao().insertArtworks(artworks.map {
+            BacklogArtworkEntity(
+                token = it.token!!,
+                title = it.title,
+                byline = it.byline,
+                attribution = it.attribution,
+                persistentUri = it.persistentUri.toString(),
+                webUri = it.webUri?.toString(),
+                metadata = it.metadata,
+                addedTime = selectedTime
+            )
+        })
+        Log.i(LOG_TAG, "Added ${artworks.size} artworks to the backlog")
+    }
+
+    // Moves up to count artworks from the backlog into the provider
+    // Returns how many were promoted; zero means the caller has to download artwork itself
+    @WorkerThread
+    fun promote(context: Context, count: Int): Int {
+        val dao = AppDatabase.getInstance(context).backlogArtworkDao()
+        // A refill that was already running when the backlog was cleared may still have added its artworks
+        val clearedTime = getClearedTime(context)
+        dao.deleteAddedBefore(clearedTime)
+        val candidates = dao.getOldestArtworks(count, clearedTime)
+        if (candidates.isEmpty()) {
+            return 0
+        }
+
+        // Files can disappear from underneath us, e.g. if the user clears the app's storage
+        val artworks = candidates.filter { isReadable(context, Uri.parse(it.persistentUri)) }
+            .map {
+                Artwork.Builder()
+                    .title(it.title)
+                    .byline(it.byline)
+                    .attribution(it.attribution)
+                    .persistentUri(Uri.parse(it.persistentUri))
+                    .token(it.token)
+                    .webUri(it.webUri?.let { webUri -> Uri.parse(webUri) })
+                    .metadata(it.metadata)
+                    .build()
+            }
+        if (artworks.isNotEmpty()) {
+            ProviderContract.getProviderClient(context, PixivArtProvider::class.java).addArtwork(artworks)
+        }
+        dao.deleteArtworks(candidates)
+
+        Log.i(LOG_TAG, "Promoted ${artworks.size} artworks from the backlog")
+        return artworks.size
+    }
+
+    // Schedules PixivArtWorker to top the backlog up to its configured depth
+    // Use ExistingWorkPolicy.REPLACE when the refill constraints have changed
+    fun enqueueRefill(context: Context, existingWorkPolicy: ExistingWorkPolicy = ExistingWorkPolicy.KEEP) {
+        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context)
+        if (getDepth(context) == 0) {
+            WorkManager.getInstance(context).cancelUniqueWork(WORKER_TAG)
+            return
+        }
+
+        // The mobile data saver must also hold back the refill, otherwise it would be downloading over mobile data
+        val unmeteredOnly = sharedPrefs.getBoolean("pref_backlogUnmeteredOnly", true) ||
+                sharedPrefs.getBoolean("pref_dataMode", false)
+        Constraints.Builder().apply {
+            setRequiredNetworkType(if (unmeteredOnly) NetworkType.UNMETERED else NetworkType.CONNECTED)
+            setRequiresCharging(sharedPrefs.getBoolean("pref_backlogChargingOnly", false))
+        }.let { builder ->
+            OneTimeWorkRequest.Builder(PixivArtWorker::class.java)
+                .setConstraints(builder.build())
+                .setInputData(workDataOf(PixivArtWorker.KEY_FILL_BACKLOG to true))
+                .addTag(WORKER_TAG)
+                .setBackoffCriteria(BackoffPolicy.LINEAR, 5, TimeUnit.MINUTES)
+                .build()
+        }.let { request ->
+            WorkManager.getInstance(context).enqueueUniqueWork(WORKER_TAG, existingWorkPolicy, request)
+        }
+    }
+
+    // Throws away the backlog, e.g. when the update mode changes and what we have stored no longer applies
+    // The cleared time is recorded straight away, so promote() skips the old artworks even before they are deleted
+    fun clear(context: Context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+            .putLong(PREF_CLEARED_TIME, System.currentTimeMillis())
+            .apply()
+        WorkManager.getInstance(context).cancelUniqueWork(WORKER_TAG)
+        CoroutineScope(Dispatchers.Main + SupervisorJob()).launch(Dispatchers.IO) {
+            // Waits for a running load to finish or be cancelled, so it can't add anything after this
+            PixivArtWorker.loadMutex.withLock {
+                AppDatabase.getInstance(context).backlogArtworkDao().deleteAll()
+            }
+        }
+    }
+
+    private fun getClearedTime(context: Context): Long =
+        PreferenceManager.getDefaultSharedPreferences(context).getLong(PREF_CLEARED_TIME, 0L)
+
+    private fun isReadable(context: Context, uri: Uri): Boolean =
+        try {
+            context.contentResolver.openFileDescriptor(uri, "r")?.use { true } ?: false
+        } catch (e: FileNotFoundException) {
+            false
+        } catch (e: SecurityException) {
+            false
+        }
+}
@@ -0,0 +1,35 @@
+package com.antony.muzei.pixiv.provider.backlog
+
+import androidx.room.Dao
+import androidx.room.Delete
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface BacklogArtworkDao {
+    // Oldest first, so artworks are shown roughly in the order they were found
+    @Query("SELECT * FROM BacklogArtworkEntity WHERE addedTime >= (:minAddedTime) ORDER BY addedTime ASC LIMIT (:count)")
+    fun getOldestArtworks(count: Int, minAddedTime: Long): List<BacklogArtworkEntity>
+
+    @Query("SELECT COUNT(*) FROM BacklogArtworkEntity")
+    fun getCount(): Int
+
+    @Query("SELECT token FROM BacklogArtworkEntity")
+    fun getAllTokens(): List<String>
+
+    @Query("SELECT persistentUri FROM BacklogArtworkEntity")
+    fun getAllPersistentUris(): List<String>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertArtworks(artworks: List<BacklogArtworkEntity>)
+
+    @Delete
+    fun deleteArtworks(artworks: List<BacklogArtworkEntity>)
+
+    @Query("DELETE FROM BacklogArtworkEntity")
+    fun deleteAll()
+
+    @Query("DELETE FROM BacklogArtworkEntity WHERE addedTime < (:addedTime)")
+    fun deleteAddedBefore(addedTime: Long)
+}
@@ -0,0 +1,18 @@
+package com.antony.muzei.pixiv.provider.backlog
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+// An artwork that has been fully downloaded, but not yet handed to Muzei
+// Mirrors the fields of Artwork that PixivArtWorker fills in
+@Entity
+data class BacklogArtworkEntity(
+    @PrimaryKey val token: String,
+    val title: String?,
+    val byline: String?,
+    val attribution: String?,
+    val persistentUri: String,
+    val webUri: String?,
+    val metadata: String?,
+    val addedTime: Long
+)
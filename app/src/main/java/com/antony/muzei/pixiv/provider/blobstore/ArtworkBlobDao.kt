@@ -0,0 +1,22 @@
+package com.antony.muzei.pixiv.provider.blobstore
+
+import androidx.room.Dao
+import androidx.room.Delete
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface ArtworkBlobDao {
+    @Query("SELECT * FROM ArtworkBlobEntity WHERE illustId = (:illustId) AND page = (:page)")
+    fun getBlobs(illustId: Int, page: Int): List<ArtworkBlobEntity>
+
+    @Query("SELECT * FROM ArtworkBlobEntity WHERE hash = (:hash) AND location = (:location)")
+    fun getBlobsByHash(hash: String, location: String): List<ArtworkBlobEntity>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertBlob(blob: ArtworkBlobEntity)
+
+    @Delete
+    fun deleteBlob(blob: ArtworkBlobEntity)
+}
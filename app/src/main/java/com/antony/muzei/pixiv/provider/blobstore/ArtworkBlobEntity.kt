@@ -0,0 +1,19 @@
+package com.antony.muzei.pixiv.provider.blobstore
+
+import androidx.room.Entity
+import androidx.room.Index
+
+// Where the image for one page of an artwork is stored, and the SHA-256 of its content
+// location is either ArtworkBlobStore.LOCATION_INTERNAL or LOCATION_EXTERNAL, an artwork may be in both
+// volume is the MediaStore volume of images stored externally on API 29+, null otherwise
+// hash is empty for gallery images indexed from an earlier version, that were never hashed
+@Entity(primaryKeys = ["illustId", "page", "location"], indices = [Index("hash")])
+data class ArtworkBlobEntity(
+    val illustId: Int,
+    val page: Int,
+    val location: String,
+    val hash: String,
+    val uri: String,
+    val mimeType: String?,
+    val volume: String? = null
+)
@@ -0,0 +1,183 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.blobstore
+
+import android.content.ContentUris
+import android.content.Context
+import android.net.Uri
+import android.os.Build
+import android.os.Environment
+import android.provider.MediaStore
+import android.util.Log
+import androidx.annotation.RequiresApi
+import androidx.annotation.WorkerThread
+import androidx.preference.PreferenceManager
+import com.antony.muzei.pixiv.AppDatabase
+import okhttp3.MediaType
+import okio.HashingSink
+import okio.blackholeSink
+import okio.buffer
+import okio.source
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.InputStream
+
+/*
+ * Index of every artwork image we have stored, by illust id and page, along with a hash of its content
+ *
+ * Images kept in app storage are named after that hash, so the same image is only ever stored there once
+ * Images saved to the user's gallery keep their readable names, but are indexed all the same
+ * Before downloading, PixivArtWorker looks an artwork up here, so an image that is already stored in one location
+ * is copied into the other when the user switches storage mode, instead of being downloaded again
+ *
+ * Files can disappear without us knowing, e.g. when the cache is cleared or the user deletes them from their
+ * gallery, so every lookup checks the file is still there and drops rows that point at nothing
+ */
+object ArtworkBlobStore {
+    private const val LOG_TAG = "ANTONY_BLOBSTORE"
+
+    const val LOCATION_INTERNAL = "internal"
+    const val LOCATION_EXTERNAL = "external"
+
+    private const val BLOB_DIRECTORY = "blobs"
+
+    private const val KEY_MEDIA_STORE_INDEXED = "mediaStoreIndexed"
+
+    fun getLocation(storeInExtStorage: Boolean): String =
+        if (storeInExtStorage) LOCATION_EXTERNAL else LOCATION_INTERNAL
+
+    // Internal storage in this case is /storage/emulated/0/Android/data/com.antony.muzei.pixiv/files/Pictures/blobs
+    fun getBlobFile(context: Context, hash: String, fileType: MediaType?): File =
+        File(context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), BLOB_DIRECTORY).let {
+            if (!it.exists()) {
+                it.mkdirs()
+            }
+            File(it, "$hash.${fileType?.subtype ?: "bin"}")
+        }
+
+    // Every stored copy of the page that still exists
+    @WorkerThread
+    fun find(context: Context, illustId: Int, page: Int): List<ArtworkBlobEntity> =
+        reconcile(context, AppDatabase.getInstance(context).artworkBlobDao().getBlobs(illustId, page))
+
+    // A stored image with exactly this content, if there is one in location
+    @WorkerThread
+    fun findByHash(context: Context, hash: String, location: String): ArtworkBlobEntity? =
+        reconcile(context, AppDatabase.getInstance(context).artworkBlobDao().getBlobsByHash(hash, location))
+            .firstOrNull()
+
+    @WorkerThread
+    fun record(
+        context: Context,
+        illustId: Int,
+        page: Int,
+        location: String,
+        hash: String,
+        uri: Uri,
+        fileType: MediaType?,
+        volume: String? = null
+    ) {
+        AppDatabase.getInstance(context).artworkBlobDao().insertBlob(
+            ArtworkBlobEntity(illustId, page, location, hash, uri.toString(), fileType?.toString(), volume)
+        )
+    }
+
+    // Images saved to the gallery before they were indexed are found with one scan of our own folder
+    // Only ever done once, after that every image we store is indexed as it is written
+    @RequiresApi(Build.VERSION_CODES.Q)
+    @WorkerThread
+    fun indexMediaStoreImages(context: Context) {
+        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context)
+        if (sharedPrefs.getBoolean(KEY_MEDIA_STORE_INDEXED, false)) {
+            return
+        }
+        val dao = AppDatabase.getInstance(context).artworkBlobDao()
+        var count = 0
+        context.contentResolver.query(
+            MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL),
+            arrayOf(
+                MediaStore.Images.Media._ID,
+                MediaStore.Images.Media.DISPLAY_NAME,
+                MediaStore.Images.Media.MIME_TYPE,
+                MediaStore.Images.Media.VOLUME_NAME
+            ),
+            "${MediaStore.Images.Media.RELATIVE_PATH} = ?",
+            arrayOf(Environment.DIRECTORY_PICTURES + "/PixivForMuzei3/"),
+            null
+        )?.use {
+            while (it.moveToNext()) {
+                // Images were named after their illust id, plus whatever extension the MediaStore added
+                val illustId = it.getString(1)?.substringBefore('.')?.toIntOrNull() ?: continue
+                val volume = it.getString(3)
+                val uri = ContentUris.withAppendedId(MediaStore.Images.Media.getContentUri(volume), it.getLong(0))
+                dao.insertBlob(
+                    ArtworkBlobEntity(illustId, 0, LOCATION_EXTERNAL, "", uri.toString(), it.getString(2), volume)
+                )
+                count++
+            }
+        }
+        sharedPrefs.edit().putBoolean(KEY_MEDIA_STORE_INDEXED, true).apply()
+        Log.i(LOG_TAG, "Indexed $count existing gallery images")
+    }
+
+    // Opens any stored copy of the page, for when the one an Artwork points at has gone missing
+    @WorkerThread
+    fun open(context: Context, illustId: Int, page: Int): InputStream? =
+        find(context, illustId, page).firstNotNullOfOrNull {
+            try {
+                context.contentResolver.openInputStream(Uri.parse(it.uri))
+            } catch (e: FileNotFoundException) {
+                null
+            }
+        }
+
+    // Hex encoded SHA-256 of the file's content, read in segments so the file is never held in memory
+    @WorkerThread
+    fun hash(file: File): String =
+        HashingSink.sha256(blackholeSink()).use { hashingSink ->
+            file.source().buffer().use { it.readAll(hashingSink) }
+            hashingSink.hash.hex()
+        }
+
+    private fun reconcile(context: Context, blobs: List<ArtworkBlobEntity>): List<ArtworkBlobEntity> {
+        val (readable, missing) = blobs.partition { isReadable(context, Uri.parse(it.uri)) }
+        // An image on an SD card that is currently removed is not gone, it will be back
+        val deleted = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            val mountedVolumes = MediaStore.getExternalVolumeNames(context)
+            missing.filter { it.volume == null || mountedVolumes.contains(it.volume) }
+        } else {
+            missing
+        }
+        if (deleted.isNotEmpty()) {
+            val dao = AppDatabase.getInstance(context).artworkBlobDao()
+            deleted.forEach {
+                Log.d(LOG_TAG, "Dropping ${it.illustId}_p${it.page} in ${it.location}, file is gone")
+                dao.deleteBlob(it)
+            }
+        }
+        return readable
+    }
+
+    private fun isReadable(context: Context, uri: Uri): Boolean =
+        try {
+            context.contentResolver.openFileDescriptor(uri, "r")?.use { true } ?: false
+        } catch (e: FileNotFoundException) {
+            false
+        } catch (e: SecurityException) {
+            false
+        }
+}
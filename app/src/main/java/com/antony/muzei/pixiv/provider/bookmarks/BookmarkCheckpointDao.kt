@@ -0,0 +1,25 @@
+package com.antony.muzei.pixiv.provider.bookmarks
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface BookmarkCheckpointDao {
+    // Newest first
+    @Query(
+        "SELECT * FROM BookmarkCheckpointEntity WHERE userId = (:userId) AND `restrict` = (:restrict) " +
+                "ORDER BY maxBookmarkId DESC"
+    )
+    fun getCheckpoints(userId: String, restrict: String): List<BookmarkCheckpointEntity>
+
+    @Query("SELECT COUNT(*) FROM BookmarkCheckpointEntity WHERE userId = (:userId) AND `restrict` = (:restrict)")
+    fun getCount(userId: String, restrict: String): Int
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertCheckpoints(checkpoints: List<BookmarkCheckpointEntity>)
+
+    @Query("DELETE FROM BookmarkCheckpointEntity WHERE userId = (:userId) AND `restrict` = (:restrict)")
+    fun deleteCheckpoints(userId: String, restrict: String)
+}
@@ -0,0 +1,18 @@
+package com.antony.muzei.pixiv.provider.bookmarks
+
+import androidx.room.Entity
+
+// One page of a user's bookmarks, as reached by passing maxBookmarkId to the API
+// The page's own bookmarks are the first count artworks, the rest also belong to the next older checkpoint
+// firstIllustId is the newest artwork of the page, so a newer page can tell where it runs into this one
+// The newest page has no max_bookmark_id, and is stored as BookmarkTimeline.HEAD
+// verifiedTime is when the page was last fetched, pages are reconciled against the API oldest first
+@Entity(primaryKeys = ["userId", "restrict", "maxBookmarkId"])
+data class BookmarkCheckpointEntity(
+    val userId: String,
+    val restrict: String,
+    val maxBookmarkId: Long,
+    val firstIllustId: Int,
+    val count: Int,
+    val verifiedTime: Long
+)
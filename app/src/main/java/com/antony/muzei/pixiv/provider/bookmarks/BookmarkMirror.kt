@@ -0,0 +1,116 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.bookmarks
+
+import android.content.Context
+import android.util.Log
+import androidx.work.BackoffPolicy
+import androidx.work.Constraints
+import androidx.work.ExistingPeriodicWorkPolicy
+import androidx.work.NetworkType
+import androidx.work.PeriodicWorkRequest
+import androidx.work.WorkManager
+import com.antony.muzei.pixiv.AppDatabase
+import com.antony.muzei.pixiv.provider.network.moshi.AuthArtwork
+import com.squareup.moshi.JsonDataException
+import com.squareup.moshi.Moshi
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+/*
+ * Local copy of the user's bookmarks, that bookmark mode selects and filters from without touching the API
+ *
+ * Each bookmark list is kept in step by a BookmarkTimeline
+ * BookmarkSyncWorker picks up new bookmarks and reconciles removed ones in the background, so a refresh in
+ * bookmark mode only has to download the image
+ * The private list is only mirrored once the user has asked for private bookmarks to be shown
+ */
+object BookmarkMirror {
+    private const val LOG_TAG = "ANTONY_BOOKMARKS"
+    const val WORKER_TAG = "ANTONY_BOOKMARK_SYNC"
+
+    // Pages checked for removed bookmarks per list on each sync
+    private const val RECONCILE_PAGES = 10
+
+    private val adapter = Moshi.Builder().build().adapter(AuthArtwork::class.java)
+
+    fun getRestricts(includePrivate: Boolean): List<String> =
+        if (includePrivate) {
+            listOf(BookmarkTimeline.RESTRICT_PUBLIC, BookmarkTimeline.RESTRICT_PRIVATE)
+        } else {
+            listOf(BookmarkTimeline.RESTRICT_PUBLIC)
+        }
+
+    suspend fun isSynced(context: Context, userId: String, restricts: List<String>): Boolean =
+        restricts.all { BookmarkTimeline(context, userId, it).isSynced() }
+
+    // Adds new bookmarks to each list, and reconciles some of its pages if asked to
+    suspend fun sync(context: Context, userId: String, restricts: List<String>, reconcile: Boolean) {
+        restricts.forEach {
+            BookmarkTimeline(context, userId, it).apply {
+                refresh()
+                if (reconcile) {
+                    reconcile(RECONCILE_PAGES)
+                }
+            }
+        }
+    }
+
+    // Every mirrored bookmark in random order, to be handed to getArtworks() a batch at a time
+    suspend fun getShuffledIllustIds(context: Context, userId: String, restricts: List<String>): List<Int> =
+        withContext(Dispatchers.IO) {
+            AppDatabase.getInstance(context).bookmarkMirrorDao().getIllustIds(userId, restricts).shuffled()
+        }
+
+    suspend fun getArtworks(context: Context, userId: String, illustIds: List<Int>): List<AuthArtwork> =
+        withContext(Dispatchers.IO) {
+            AppDatabase.getInstance(context).bookmarkMirrorDao().getArtworkJson(userId, illustIds).mapNotNull {
+                try {
+                    adapter.fromJson(it)
+                } catch (e: IOException) {
+                    null
+                } catch (e: JsonDataException) {
+                    // Stored by a version with a different AuthArtwork, reconciliation will replace it eventually
+                    Log.w(LOG_TAG, "Could not read mirrored bookmark", e)
+                    null
+                }
+            }
+        }
+
+    // Schedules BookmarkSyncWorker to run roughly once a day
+    // Leaves an already scheduled sync alone
+    fun enqueueSync(context: Context) {
+        Constraints.Builder().apply {
+            setRequiredNetworkType(NetworkType.CONNECTED)
+        }.let { builder ->
+            PeriodicWorkRequest.Builder(BookmarkSyncWorker::class.java, 24, TimeUnit.HOURS)
+                .setConstraints(builder.build())
+                .addTag(WORKER_TAG)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.MINUTES)
+                .build()
+        }.let { request ->
+            WorkManager.getInstance(context)
+                .enqueueUniquePeriodicWork(WORKER_TAG, ExistingPeriodicWorkPolicy.KEEP, request)
+        }
+    }
+
+    fun cancelSync(context: Context) {
+        WorkManager.getInstance(context).cancelUniqueWork(WORKER_TAG)
+    }
+}
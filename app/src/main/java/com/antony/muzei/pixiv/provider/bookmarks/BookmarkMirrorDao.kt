@@ -0,0 +1,27 @@
+package com.antony.muzei.pixiv.provider.bookmarks
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface BookmarkMirrorDao {
+    @Query("SELECT illustId FROM BookmarkMirrorEntity WHERE userId = (:userId) AND `restrict` IN (:restricts)")
+    fun getIllustIds(userId: String, restricts: List<String>): List<Int>
+
+    @Query("SELECT json FROM BookmarkMirrorEntity WHERE userId = (:userId) AND illustId IN (:illustIds)")
+    fun getArtworkJson(userId: String, illustIds: List<Int>): List<String>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertBookmarks(bookmarks: List<BookmarkMirrorEntity>)
+
+    @Query(
+        "DELETE FROM BookmarkMirrorEntity WHERE userId = (:userId) AND `restrict` = (:restrict) " +
+                "AND maxBookmarkId = (:maxBookmarkId)"
+    )
+    fun deleteBookmarks(userId: String, restrict: String, maxBookmarkId: Long)
+
+    @Query("DELETE FROM BookmarkMirrorEntity WHERE userId = (:userId) AND `restrict` = (:restrict)")
+    fun deleteAll(userId: String, restrict: String)
+}
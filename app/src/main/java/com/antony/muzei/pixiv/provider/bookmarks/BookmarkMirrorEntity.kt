@@ -0,0 +1,18 @@
+package com.antony.muzei.pixiv.provider.bookmarks
+
+import androidx.room.Entity
+import androidx.room.Index
+
+// A bookmarked artwork, stored as the AuthArtwork JSON the API returned for it
+// maxBookmarkId is the BookmarkCheckpointEntity whose page it was last seen on, so a page can be replaced as a whole
+@Entity(
+    primaryKeys = ["userId", "illustId"],
+    indices = [Index("userId", "restrict", "maxBookmarkId")]
+)
+data class BookmarkMirrorEntity(
+    val userId: String,
+    val illustId: Int,
+    val restrict: String,
+    val maxBookmarkId: Long,
+    val json: String
+)
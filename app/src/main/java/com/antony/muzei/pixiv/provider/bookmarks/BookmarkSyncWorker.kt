@@ -0,0 +1,61 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.bookmarks
+
+import android.content.Context
+import android.util.Log
+import androidx.work.CoroutineWorker
+import androidx.work.WorkerParameters
+import com.antony.muzei.pixiv.PixivMuzeiSupervisor.getAccessToken
+import com.antony.muzei.pixiv.provider.ProviderSettings
+import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.io.IOException
+
+// Periodic background sync of BookmarkMirror, scheduled by BookmarkMirror.enqueueSync()
+class BookmarkSyncWorker(context: Context, params: WorkerParameters) : CoroutineWorker(context, params) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_BOOKMARKS"
+    }
+
+    override suspend fun doWork(): Result {
+        val settings = ProviderSettings.get(applicationContext)
+        // Bookmarks are no longer being shown, stop syncing until bookmark mode is selected again
+        if (settings.updateMode != "bookmark" || settings.userId.isEmpty()) {
+            BookmarkMirror.cancelSync(applicationContext)
+            return Result.success()
+        }
+
+        return try {
+            withContext(Dispatchers.IO) { getAccessToken() }
+            BookmarkMirror.sync(
+                applicationContext,
+                settings.userId,
+                BookmarkMirror.getRestricts(settings.includePrivateBookmarks),
+                reconcile = true
+            )
+            Result.success()
+        } catch (e: AccessTokenAcquisitionException) {
+            Log.i(LOG_TAG, "Could not sync bookmarks, no access token")
+            Result.retry()
+        } catch (e: IOException) {
+            Log.i(LOG_TAG, "Could not sync bookmarks", e)
+            Result.retry()
+        }
+    }
+}
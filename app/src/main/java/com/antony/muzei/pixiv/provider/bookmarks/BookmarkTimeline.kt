@@ -0,0 +1,182 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.bookmarks
+
+import android.content.Context
+import android.util.Log
+import com.antony.muzei.pixiv.AppDatabase
+import com.antony.muzei.pixiv.provider.network.PixivAuthFeedJsonService
+import com.antony.muzei.pixiv.provider.network.RestClient
+import com.antony.muzei.pixiv.provider.network.moshi.AuthArtwork
+import com.antony.muzei.pixiv.provider.network.moshi.Illusts
+import com.squareup.moshi.Moshi
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import retrofit2.awaitResponse
+import java.io.IOException
+
+/*
+ * Keeps BookmarkMirrorEntity in step with one of a user's bookmark lists, public or private
+ *
+ * The API can only page through bookmarks from a max_bookmark_id onwards, 30 at a time
+ * Every page boundary the API hands us through next_url is stored as a checkpoint, along with how many of the
+ * page's bookmarks are its own, and the page's bookmarks are mirrored under that checkpoint
+ *
+ * The mirror is built by walking every page once
+ * Bookmarks are only ever added at the newest end, so refresh() after that only walks the newest pages, until they
+ * run into the newest page we already know
+ * Removed bookmarks can be anywhere, so reconcile() fetches the pages verified longest ago and replaces what is
+ * mirrored for them; over enough runs every page gets checked
+ */
+class BookmarkTimeline(
+    context: Context,
+    private val userId: String,
+    private val restrict: String = RESTRICT_PUBLIC
+) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_BOOKMARKS"
+
+        const val RESTRICT_PUBLIC = "public"
+        const val RESTRICT_PRIVATE = "private"
+
+        const val HEAD = Long.MAX_VALUE
+
+        private val adapter = Moshi.Builder().build().adapter(AuthArtwork::class.java)
+
+        fun getNextMaxBookmarkId(illusts: Illusts): Long? =
+            illusts.next_url?.substringAfter("max_bookmark_id=", "")?.substringBefore('&')?.toLongOrNull()
+    }
+
+    private val service: PixivAuthFeedJsonService = RestClient.getAuthFeedService()
+    private val database = AppDatabase.getInstance(context)
+    private val dao = database.bookmarkCheckpointDao()
+    private val mirrorDao = database.bookmarkMirrorDao()
+
+    // An index always holds at least the HEAD checkpoint, even for a user without any bookmarks
+    suspend fun isSynced(): Boolean = withContext(Dispatchers.IO) { dao.getCount(userId, restrict) > 0 }
+
+    // Builds the mirror if there is none yet, otherwise adds whatever was bookmarked since the last refresh
+    suspend fun refresh() {
+        val checkpoints = withContext(Dispatchers.IO) { dao.getCheckpoints(userId, restrict) }
+        val newestKnown = checkpoints.firstOrNull { it.maxBookmarkId != HEAD }
+        val verifiedTime = System.currentTimeMillis()
+
+        var maxBookmarkId = HEAD
+        var page = fetchPage(maxBookmarkId)
+        val newPages = mutableListOf<Pair<BookmarkCheckpointEntity, List<AuthArtwork>>>()
+        while (true) {
+            val next = getNextMaxBookmarkId(page)
+            if (newestKnown != null && (next == null || next <= newestKnown.maxBookmarkId)) {
+                // This page runs into the newest one we know, only its bookmarks before that are new
+                newPages.add(createPage(maxBookmarkId, page, newestKnown.firstIllustId, verifiedTime))
+                break
+            }
+            newPages.add(createPage(maxBookmarkId, page, null, verifiedTime))
+            maxBookmarkId = next ?: break
+            page = fetchPage(maxBookmarkId)
+        }
+
+        withContext(Dispatchers.IO) {
+            database.runInTransaction {
+                if (newestKnown == null) {
+                    mirrorDao.deleteAll(userId, restrict)
+                    dao.deleteCheckpoints(userId, restrict)
+                }
+                // Whatever was on the previous HEAD page and is no longer on any new page has since been removed
+                mirrorDao.deleteBookmarks(userId, restrict, HEAD)
+                store(newPages)
+            }
+        }
+        Log.i(
+            LOG_TAG,
+            if (newestKnown == null) "Mirrored ${newPages.size} pages of $restrict bookmarks"
+            else "Added ${newPages.size - 1} pages of new $restrict bookmarks"
+        )
+    }
+
+    // Fetches up to maxPages of the pages verified longest ago, dropping mirrored bookmarks that have been removed
+    // HEAD is left out, as refresh() already fetches it every time
+    suspend fun reconcile(maxPages: Int) {
+        val checkpoints = withContext(Dispatchers.IO) { dao.getCheckpoints(userId, restrict) }
+        val stale = checkpoints.filter { it.maxBookmarkId != HEAD }.sortedBy { it.verifiedTime }.take(maxPages)
+
+        var removed = 0
+        for (checkpoint in stale) {
+            // The newest bookmark of the next older page marks where this page's own bookmarks end
+            val olderCheckpoint = checkpoints.getOrNull(checkpoints.indexOf(checkpoint) + 1)
+            val page = createPage(
+                checkpoint.maxBookmarkId,
+                fetchPage(checkpoint.maxBookmarkId),
+                olderCheckpoint?.firstIllustId,
+                System.currentTimeMillis()
+            )
+            removed += (checkpoint.count - page.first.count).coerceAtLeast(0)
+            withContext(Dispatchers.IO) {
+                database.runInTransaction {
+                    mirrorDao.deleteBookmarks(userId, restrict, checkpoint.maxBookmarkId)
+                    store(listOf(page))
+                }
+            }
+        }
+        Log.i(LOG_TAG, "Reconciled ${stale.size} pages of $restrict bookmarks, $removed removed")
+    }
+
+    private fun store(pages: List<Pair<BookmarkCheckpointEntity, List<AuthArtwork>>>) {
+        dao.insertCheckpoints(pages.map { it.first })
+        mirrorDao.insertBookmarks(pages.flatMap { (checkpoint, artworks) ->
+            artworks.map {
+                BookmarkMirrorEntity(userId, it.id, restrict, checkpoint.maxBookmarkId, adapter.toJson(it))
+            }
+        })
+    }
+
+    // Always goes to the network rather than through FeedPageCache
+    // A cached page would be stamped as verified now, and could hide bookmarks added since it was cached
+    // An error response, e.g. when rate limited, is thrown as an IOException so callers can retry later
+    private suspend fun fetchPage(maxBookmarkId: Long): Illusts {
+        val response = when {
+            maxBookmarkId == HEAD && restrict == RESTRICT_PRIVATE -> service.getPrivateBookmarkJson(userId)
+            maxBookmarkId == HEAD -> service.getPublicBookmarkJson(userId)
+            restrict == RESTRICT_PRIVATE -> service.getPrivateBookmarkOffsetJson(userId, maxBookmarkId.toString())
+            else -> service.getPublicBookmarkOffsetJson(userId, maxBookmarkId.toString())
+        }.awaitResponse()
+        if (!response.isSuccessful) {
+            throw IOException("Fetching $restrict bookmarks from $maxBookmarkId failed with HTTP ${response.code()}")
+        }
+        return response.body() ?: throw IOException("Empty $restrict bookmarks page from $maxBookmarkId")
+    }
+
+    // The checkpoint for a fetched page, along with the bookmarks that are the page's own
+    // olderFirstIllustId is the first bookmark of the next older page, null if this page doesn't run into one
+    private fun createPage(
+        maxBookmarkId: Long,
+        page: Illusts,
+        olderFirstIllustId: Int?,
+        verifiedTime: Long
+    ): Pair<BookmarkCheckpointEntity, List<AuthArtwork>> {
+        val overlap = olderFirstIllustId?.let { id -> page.artworks.indexOfFirst { it.id == id } } ?: -1
+        val count = if (overlap == -1) page.artworks.size else overlap
+        return BookmarkCheckpointEntity(
+            userId,
+            restrict,
+            maxBookmarkId,
+            page.artworks.firstOrNull()?.id ?: 0,
+            count,
+            verifiedTime
+        ) to page.artworks.take(count)
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.cache
+
+import android.content.Context
+import android.net.Uri
+import android.os.Environment
+import android.util.Log
+import androidx.annotation.WorkerThread
+import com.antony.muzei.pixiv.AppDatabase
+import com.antony.muzei.pixiv.provider.PixivArtProvider
+import com.antony.muzei.pixiv.provider.ProviderSettings
+import com.google.android.apps.muzei.api.provider.ProviderContract
+import java.io.File
+
+/*
+ * Keeps the artwork stored in app storage within the user's quota
+ *
+ * Images are evicted least recently shown first, PixivArtProvider.openFile() touches an image's modification
+ * time whenever Muzei loads it, and only as many as are needed to get back under the quota
+ * Images no artwork references any more go first, then those of artworks Muzei still has, whose rows are removed
+ * from the provider in a single batch
+ * The image most recently shown and anything in the backlog are never evicted
+ *
+ * Images saved to the user's gallery are theirs, and never touched
+ */
+object ArtworkCache {
+    private const val LOG_TAG = "ANTONY_CACHE"
+
+    // SQLite allows at most 999 bound arguments in a single statement
+    private const val MAX_ARGUMENTS = 500
+
+    @WorkerThread
+    fun trim(context: Context) {
+        val quota = ProviderSettings.get(context).cacheQuota
+        val directory = context.getExternalFilesDir(Environment.DIRECTORY_PICTURES) ?: return
+
+        // Part files are cleaned up by PartialDownload, and may be in the middle of being written
+        val files = directory.walkTopDown().filter { it.isFile && !it.name.startsWith(".") }.toList()
+        var totalSize = files.sumOf { it.length() }
+        if (totalSize <= quota) {
+            Log.d(LOG_TAG, "$totalSize of $quota bytes used, nothing to evict")
+            return
+        }
+
+        // Several tokens can share an image, see ArtworkBlobStore
+        val tokensByPath = getProviderTokensByPath(context)
+        val protectedPaths = AppDatabase.getInstance(context).backlogArtworkDao().getAllPersistentUris()
+            .mapNotNull { Uri.parse(it).takeIf { uri -> uri.scheme == "file" }?.path }
+            .toMutableSet()
+        files.filter { tokensByPath.containsKey(it.path) }.maxByOrNull { it.lastModified() }
+            ?.let { protectedPaths.add(it.path) }
+
+        val candidates = files.filter { !protectedPaths.contains(it.path) }
+            .sortedWith(compareBy<File> { tokensByPath.containsKey(it.path) }.thenBy { it.lastModified() })
+        val evictedTokens = mutableListOf<String>()
+        var evictedCount = 0
+        for (file in candidates) {
+            if (totalSize <= quota) {
+                break
+            }
+            val size = file.length()
+            if (file.delete()) {
+                totalSize -= size
+                evictedCount++
+                tokensByPath[file.path]?.let { evictedTokens.addAll(it) }
+            }
+        }
+
+        removeArtworks(context, evictedTokens)
+        Log.i(
+            LOG_TAG,
+            "Evicted $evictedCount images and ${evictedTokens.size} artworks, $totalSize of $quota bytes used"
+        )
+    }
+
+    private fun getProviderTokensByPath(context: Context): Map<String, List<String>> {
+        val tokensByPath = mutableMapOf<String, MutableList<String>>()
+        context.contentResolver.query(
+            ProviderContract.getProviderClient(context, PixivArtProvider::class.java).contentUri,
+            arrayOf(ProviderContract.Artwork.TOKEN, ProviderContract.Artwork.PERSISTENT_URI),
+            null,
+            null,
+            null
+        )?.use {
+            while (it.moveToNext()) {
+                val token = it.getString(0) ?: continue
+                val uri = it.getString(1)?.let { uri -> Uri.parse(uri) } ?: continue
+                val path = uri.takeIf { uri.scheme == "file" }?.path ?: continue
+                tokensByPath.getOrPut(path) { mutableListOf() }.add(token)
+            }
+        }
+        return tokensByPath
+    }
+
+    // Artworks whose image was evicted would otherwise point Muzei at a missing file
+    private fun removeArtworks(context: Context, tokens: List<String>) {
+        val contentUri = ProviderContract.getProviderClient(context, PixivArtProvider::class.java).contentUri
+        tokens.chunked(MAX_ARGUMENTS).forEach { chunk ->
+            context.contentResolver.delete(
+                contentUri,
+                "${ProviderContract.Artwork.TOKEN} IN (${chunk.joinToString(",") { "?" }})",
+                chunk.toTypedArray()
+            )
+        }
+    }
+}
@@ -19,8 +19,22 @@ package com.antony.muzei.pixiv.provider.exceptions;
 
 public class ImageTooLargeException extends Exception
 {
+    // Size in bytes that triggered the rejection, -1 if unknown
+    private final long fileSize;
+
     public ImageTooLargeException(String message)
+    {
+        this(message, -1);
+    }
+
+    public ImageTooLargeException(String message, long fileSize)
     {
         super(message);
+        this.fileSize = fileSize;
+    }
+
+    public long getFileSize()
+    {
+        return fileSize;
     }
 }
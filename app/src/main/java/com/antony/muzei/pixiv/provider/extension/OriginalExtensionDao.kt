@@ -0,0 +1,16 @@
+package com.antony.muzei.pixiv.provider.extension
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface OriginalExtensionDao {
+    // Returns null if the extension has never been resolved
+    @Query("SELECT extension FROM OriginalExtensionEntity WHERE illustId = (:illustId)")
+    fun getExtension(illustId: Int): String?
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertExtension(extension: OriginalExtensionEntity)
+}
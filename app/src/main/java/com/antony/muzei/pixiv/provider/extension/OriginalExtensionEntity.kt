@@ -0,0 +1,11 @@
+package com.antony.muzei.pixiv.provider.extension
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+// File extension of an artwork's original image, including the leading dot
+@Entity
+data class OriginalExtensionEntity(
+    @PrimaryKey val illustId: Int,
+    val extension: String
+)
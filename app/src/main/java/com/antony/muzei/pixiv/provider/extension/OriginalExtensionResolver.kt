@@ -0,0 +1,87 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.extension
+
+import android.content.Context
+import android.util.Log
+import com.antony.muzei.pixiv.AppDatabase
+import com.antony.muzei.pixiv.provider.network.RestClient
+import com.antony.muzei.pixiv.provider.network.executeCancellable
+import com.antony.muzei.pixiv.util.HostManager
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.firstOrNull
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import okhttp3.Request
+import java.io.IOException
+
+/*
+ * Ranking artworks only come with a thumbnail URL, which is always a .jpg, while the original may be a .jpg or a .png
+ *
+ * Instead of downloading each possibility in turn, every extension is probed at once with a HEAD request
+ * The first to succeed wins and the rest are cancelled, so a .png original no longer costs a failed round trip first
+ * Extensions are remembered per illust id once a download succeeds, so downloading the artwork again skips probing entirely
+ */
+object OriginalExtensionResolver {
+    private const val LOG_TAG = "ANTONY_EXTENSION"
+
+    // Returns the extension of the original at urlNoExtension, or null if none of them could be found
+    suspend fun resolve(
+        context: Context,
+        illustId: Int,
+        urlNoExtension: String,
+        extensions: List<String>
+    ): String? {
+        withContext(Dispatchers.IO) {
+            AppDatabase.getInstance(context).originalExtensionDao().getExtension(illustId)
+        }?.let {
+            Log.d(LOG_TAG, "Cached extension $it for $illustId")
+            return it
+        }
+
+        // firstOrNull() cancels the flow as soon as one probe succeeds, which in turn cancels the remaining calls
+        return channelFlow {
+            extensions.forEach { extension ->
+                launch {
+                    if (probe(HostManager.get().replaceUrl(urlNoExtension + extension))) {
+                        send(extension)
+                    }
+                }
+            }
+        }.firstOrNull().also {
+            Log.d(LOG_TAG, "Probed extension $it for $illustId")
+        }
+    }
+
+    // Called once the original has actually been downloaded with this extension
+    suspend fun remember(context: Context, illustId: Int, extension: String) {
+        withContext(Dispatchers.IO) {
+            AppDatabase.getInstance(context).originalExtensionDao()
+                .insertExtension(OriginalExtensionEntity(illustId, extension))
+        }
+    }
+
+    private suspend fun probe(url: String): Boolean {
+        val request = Request.Builder().url(url).head().build()
+        return try {
+            RestClient.getImageClient().newCall(request).executeCancellable { it.isSuccessful }
+        } catch (e: IOException) {
+            false
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.feedcache
+
+import android.content.Context
+import android.util.Log
+import com.antony.muzei.pixiv.AppDatabase
+import com.squareup.moshi.JsonDataException
+import com.squareup.moshi.Moshi
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/*
+ * Persists fetched ranking and auth feed pages, so that later worker runs and retries after a
+ * FilterMatchNotFoundException can filter against candidates we already have instead of hitting the API again
+ *
+ * Pages are stored as JSON, keyed by mode, date, page and query, and expire after a per-mode TTL
+ */
+object FeedPageCache {
+    private const val LOG_TAG = "ANTONY_FEED_CACHE"
+
+    private val moshi = Moshi.Builder().build()
+
+    private val hitCount = AtomicInteger()
+    private val missCount = AtomicInteger()
+
+    // Counted since process start
+    fun getHitCount(): Int = hitCount.get()
+    fun getMissCount(): Int = missCount.get()
+
+    private fun getTtlMillis(mode: String, date: String): Long = when (mode) {
+        // New works show up here all the time
+        "follow" -> TimeUnit.MINUTES.toMillis(15)
+        "tag_search", "recommended" -> TimeUnit.MINUTES.toMillis(30)
+        "bookmark_public", "bookmark_private" -> TimeUnit.HOURS.toMillis(1)
+        "artist" -> TimeUnit.HOURS.toMillis(6)
+        // Ranking modes
+        // Once published, the ranking for a given date does not change
+        // Without a date we were given the latest ranking, which rolls over once a day
+        else -> if (date.isNotEmpty()) TimeUnit.DAYS.toMillis(1) else TimeUnit.HOURS.toMillis(1)
+    }
+
+    // Returns the cached page if there is an unexpired one, otherwise calls fetch and caches its result
+    suspend fun <T> getOrFetch(
+        context: Context,
+        type: Class<T>,
+        mode: String,
+        date: String = "",
+        page: Int = 1,
+        query: String = "",
+        fetch: suspend () -> T
+    ): T {
+        val dao = AppDatabase.getInstance(context).feedPageDao()
+        val adapter = moshi.adapter(type)
+
+        val cached = withContext(Dispatchers.IO) {
+            dao.getPageJson(mode, date, page, query, System.currentTimeMillis())?.let { json ->
+                try {
+                    adapter.fromJson(json)
+                } catch (e: IOException) {
+                    null
+                } catch (e: JsonDataException) {
+                    // Stored by an older version of the app with a different model
+                    null
+                }
+            }
+        }
+        if (cached != null) {
+            Log.d(LOG_TAG, "Hit for $mode/$date/$page (hits ${hitCount.incrementAndGet()}, misses ${missCount.get()})")
+            return cached
+        }
+        Log.d(LOG_TAG, "Miss for $mode/$date/$page (hits ${hitCount.get()}, misses ${missCount.incrementAndGet()})")
+
+        val fetched = fetch()
+        withContext(Dispatchers.IO) {
+            val now = System.currentTimeMillis()
+            dao.deleteExpired(now)
+            dao.insertPage(
+                FeedPageEntity(mode, date, page, query, adapter.toJson(fetched), now + getTtlMillis(mode, date))
+            )
+        }
+        return fetched
+    }
+
+    fun clear(context: Context) {
+        CoroutineScope(Dispatchers.Main + SupervisorJob()).launch(Dispatchers.IO) {
+            AppDatabase.getInstance(context).feedPageDao().deleteAll()
+        }
+    }
+}
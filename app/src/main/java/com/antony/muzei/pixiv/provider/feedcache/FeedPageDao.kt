@@ -0,0 +1,25 @@
+package com.antony.muzei.pixiv.provider.feedcache
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface FeedPageDao {
+    // Returns null if the page was never cached, or has since expired
+    @Query(
+        "SELECT json FROM FeedPageEntity WHERE mode = (:mode) AND date = (:date) AND page = (:page) " +
+                "AND `query` = (:query) AND expiresTime > (:now)"
+    )
+    fun getPageJson(mode: String, date: String, page: Int, query: String, now: Long): String?
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertPage(page: FeedPageEntity)
+
+    @Query("DELETE FROM FeedPageEntity WHERE expiresTime <= (:now)")
+    fun deleteExpired(now: Long)
+
+    @Query("DELETE FROM FeedPageEntity")
+    fun deleteAll()
+}
@@ -0,0 +1,16 @@
+package com.antony.muzei.pixiv.provider.feedcache
+
+import androidx.room.Entity
+
+// A single page of a ranking or auth feed, stored as the JSON it was parsed from
+// date is empty for pages that are not tied to a date, e.g. the latest ranking or any auth feed
+// query holds whatever else identifies the page, e.g. an artist id, search tag or next_url
+@Entity(primaryKeys = ["mode", "date", "page", "query"])
+data class FeedPageEntity(
+    val mode: String,
+    val date: String,
+    val page: Int,
+    val query: String,
+    val json: String,
+    val expiresTime: Long
+)
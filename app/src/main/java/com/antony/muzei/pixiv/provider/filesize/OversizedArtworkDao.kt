@@ -0,0 +1,15 @@
+package com.antony.muzei.pixiv.provider.filesize
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface OversizedArtworkDao {
+    @Query("SELECT * FROM OversizedArtworkEntity WHERE fileSize > (:maxFileSize)")
+    fun getArtworksLargerThan(maxFileSize: Long): List<OversizedArtworkEntity>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertOversizedArtwork(artwork: OversizedArtworkEntity)
+}
@@ -0,0 +1,14 @@
+package com.antony.muzei.pixiv.provider.filesize
+
+import androidx.room.Entity
+
+// A page of an artwork that was rejected for exceeding the maximum file size
+// Kept per ImageVariant, as the original being too large says nothing about the scaled down variants
+// The size is kept so that raising the limit makes it eligible again
+@Entity(primaryKeys = ["illustId", "page", "variant"])
+data class OversizedArtworkEntity(
+    val illustId: Int,
+    val page: Int,
+    val variant: String,
+    val fileSize: Long
+)
@@ -0,0 +1,129 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.ingest
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Color
+import android.graphics.Rect
+import kotlin.math.abs
+
+/*
+ * Finds the uniform borders around an image, without decoding the whole thing
+ *
+ * Each edge is scanned inwards one strip at a time through a BitmapRegionDecoder, and scanning stops at the first
+ * row or column that differs from the edge's corner pixel
+ * A strip is the full width or height of the image, but only STRIP_SIZE pixels deep, so even a very large
+ * original needs no more than a few megabytes, and a border of a few pixels only decodes a single strip per edge
+ */
+internal object BorderDetector {
+    private const val STRIP_SIZE = 64
+
+    // Per channel, JPEG compression leaves some noise in what was a flat colour
+    private const val TOLERANCE = 16
+
+    // Don't crop away more than this much of either dimension, what is left would hardly be an artwork
+    private const val MIN_CONTENT_FRACTION = 0.1f
+
+    // Returns the area inside the borders, or null if there is nothing to crop
+    fun findContent(decoder: BitmapRegionDecoder): Rect? {
+        val width = decoder.width
+        val height = decoder.height
+
+        val top = scanRows(decoder, 0, height, 1, 0, width)
+        if (top == height) {
+            // A blank image, there is nothing to keep
+            return null
+        }
+        val bottom = scanRows(decoder, height - 1, top, -1, 0, width) + 1
+        val left = scanColumns(decoder, 0, width, 1, top, bottom)
+        val right = scanColumns(decoder, width - 1, left, -1, top, bottom) + 1
+
+        val content = Rect(left, top, right, bottom)
+        if (content.width() == width && content.height() == height) {
+            return null
+        }
+        if (content.width() < width * MIN_CONTENT_FRACTION || content.height() < height * MIN_CONTENT_FRACTION) {
+            return null
+        }
+        return content
+    }
+
+    // Scans rows from start towards end, returning the first that is not the border colour, or end if all are
+    // The border colour is the pixel at left of the start row
+    private fun scanRows(decoder: BitmapRegionDecoder, start: Int, end: Int, step: Int, left: Int, right: Int): Int {
+        val row = IntArray(right - left)
+        var borderColor: Int? = null
+        var y = start
+        while (y != end) {
+            val stripEnd = if (step > 0) minOf(y + STRIP_SIZE, end) else maxOf(y - STRIP_SIZE, end)
+            val stripTop = minOf(y, stripEnd - step)
+            val strip = decodeStrip(decoder, Rect(left, stripTop, right, stripTop + abs(stripEnd - y)))
+            try {
+                while (y != stripEnd) {
+                    strip.getPixels(row, 0, row.size, 0, y - stripTop, row.size, 1)
+                    val color = borderColor ?: row[0].also { borderColor = it }
+                    if (!isUniform(row, color)) {
+                        return y
+                    }
+                    y += step
+                }
+            } finally {
+                strip.recycle()
+            }
+        }
+        return end
+    }
+
+    // Column counterpart to scanRows(), limited to the rows between top and bottom
+    private fun scanColumns(decoder: BitmapRegionDecoder, start: Int, end: Int, step: Int, top: Int, bottom: Int): Int {
+        val column = IntArray(bottom - top)
+        var borderColor: Int? = null
+        var x = start
+        while (x != end) {
+            val stripEnd = if (step > 0) minOf(x + STRIP_SIZE, end) else maxOf(x - STRIP_SIZE, end)
+            val stripLeft = minOf(x, stripEnd - step)
+            val strip = decodeStrip(decoder, Rect(stripLeft, top, stripLeft + abs(stripEnd - x), bottom))
+            try {
+                while (x != stripEnd) {
+                    strip.getPixels(column, 0, 1, x - stripLeft, 0, 1, column.size)
+                    val color = borderColor ?: column[0].also { borderColor = it }
+                    if (!isUniform(column, color)) {
+                        return x
+                    }
+                    x += step
+                }
+            } finally {
+                strip.recycle()
+            }
+        }
+        return end
+    }
+
+    private fun decodeStrip(decoder: BitmapRegionDecoder, rect: Rect): Bitmap =
+        decoder.decodeRegion(rect, BitmapFactory.Options().apply { inPreferredConfig = Bitmap.Config.ARGB_8888 })
+            ?: throw IllegalStateException("Could not decode $rect")
+
+    private fun isUniform(pixels: IntArray, color: Int): Boolean =
+        pixels.all {
+            abs(Color.alpha(it) - Color.alpha(color)) <= TOLERANCE &&
+                    abs(Color.red(it) - Color.red(color)) <= TOLERANCE &&
+                    abs(Color.green(it) - Color.green(color)) <= TOLERANCE &&
+                    abs(Color.blue(it) - Color.blue(color)) <= TOLERANCE
+        }
+}
@@ -0,0 +1,245 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.ingest
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Rect
+import android.os.Build
+import android.os.SystemClock
+import android.util.Log
+import android.util.Size
+import com.antony.muzei.pixiv.provider.ProviderSettings
+import com.antony.muzei.pixiv.provider.network.PartialDownload
+import com.antony.muzei.pixiv.provider.resolution.ResolutionPolicy
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import okhttp3.MediaType
+import okhttp3.MediaType.Companion.toMediaType
+import java.io.File
+import java.io.IOException
+import kotlin.math.roundToInt
+
+/*
+ * Crops, scales down and re-encodes a downloaded image before it is stored
+ *
+ * Muzei would otherwise decode the full original every time the wallpaper changes, only to scale it down itself
+ * The image is decoded with the largest power of two inSampleSize that still covers the wallpaper, so the full
+ * original is never held in memory, and only the remaining step is done with a filtered scale
+ * With auto crop enabled, BorderDetector first finds the blank borders, and only the area inside them is decoded
+ * Only one image is decoded at a time, as concurrent downloads would otherwise multiply the peak memory use
+ *
+ * The result replaces the completed part file, so if storing it is interrupted, the next attempt stores it as is
+ */
+class ImageIngest private constructor(
+    // Null to keep the full resolution
+    private val wallpaperSize: Size?,
+    // Null to keep the format the image was downloaded in
+    private val encoding: Encoding?,
+    private val autoCrop: Boolean
+) {
+    private class Encoding(val format: Bitmap.CompressFormat, val type: MediaType, val quality: Int)
+
+    companion object {
+        private const val LOG_TAG = "ANTONY_INGEST"
+
+        // Used when the image is only cropped, high enough that re-encoding is hard to notice
+        private const val CROP_ONLY_QUALITY = 95
+
+        private val decodeMutex = Mutex()
+
+        // Returns null if images are to be stored exactly as downloaded
+        fun create(settings: ProviderSettings, resolutionPolicy: ResolutionPolicy): ImageIngest? {
+            // Someone who asked for originals wants them at full resolution, but may still want them cropped
+            val encoding = if (resolutionPolicy.alwaysOriginal) null else getEncoding(settings)
+            if (encoding == null && !settings.autoCrop) {
+                return null
+            }
+            return ImageIngest(encoding?.let { resolutionPolicy.wallpaperSize }, encoding, settings.autoCrop)
+        }
+
+        private fun getEncoding(settings: ProviderSettings): Encoding? =
+            when (settings.ingestFormat) {
+                "jpeg" -> Encoding(Bitmap.CompressFormat.JPEG, "image/jpeg".toMediaType(), settings.ingestQuality)
+                "webp" -> Encoding(getWebpFormat(), "image/webp".toMediaType(), settings.ingestQuality)
+                "png" -> Encoding(Bitmap.CompressFormat.PNG, "image/png".toMediaType(), 100)
+                else -> null
+            }
+
+        // The encoding an image already in fileType is written back out with, null if we can't write it
+        private fun getEncoding(fileType: MediaType?): Encoding? =
+            when (fileType?.subtype) {
+                "jpeg" -> Encoding(Bitmap.CompressFormat.JPEG, fileType, CROP_ONLY_QUALITY)
+                "png" -> Encoding(Bitmap.CompressFormat.PNG, fileType, 100)
+                "webp" -> Encoding(getWebpFormat(), fileType, CROP_ONLY_QUALITY)
+                else -> null
+            }
+
+        private fun getWebpFormat(): Bitmap.CompressFormat =
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                Bitmap.CompressFormat.WEBP_LOSSY
+            } else {
+                @Suppress("DEPRECATION")
+                Bitmap.CompressFormat.WEBP
+            }
+
+        private fun newRegionDecoder(path: String): BitmapRegionDecoder =
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                BitmapRegionDecoder.newInstance(path)
+            } else {
+                @Suppress("DEPRECATION")
+                BitmapRegionDecoder.newInstance(path, false)
+            }
+    }
+
+    // Type of every image this produces, so used to look up already stored artworks as well
+    // Null if that depends on what was downloaded
+    val outputType: MediaType?
+        get() = encoding?.type
+
+    // Returns the type of the part file afterwards
+    // Anything that cannot be decoded is left alone, and stored as it was downloaded
+    suspend fun process(partial: PartialDownload, fileType: MediaType?): MediaType? = decodeMutex.withLock {
+        withContext(Dispatchers.Default) {
+            val startTime = SystemClock.elapsedRealtime()
+            val partFile = partial.partFile
+            val encoding = this@ImageIngest.encoding ?: getEncoding(fileType) ?: return@withContext fileType
+            val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+            BitmapFactory.decodeFile(partFile.path, bounds)
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                Log.w(LOG_TAG, "Could not decode ${partFile.name}, storing as downloaded")
+                return@withContext fileType
+            }
+
+            val regionDecoder = if (autoCrop) openRegionDecoder(partFile) else null
+            try {
+                val content = regionDecoder?.let { findContent(it) }
+                    ?: Rect(0, 0, bounds.outWidth, bounds.outHeight)
+                val isCropped = content.width() != bounds.outWidth || content.height() != bounds.outHeight
+
+                // Scale at which the image just covers the wallpaper, images are never scaled up
+                val scale = wallpaperSize?.let {
+                    minOf(
+                        1f,
+                        maxOf(it.width.toFloat() / content.width(), it.height.toFloat() / content.height())
+                    )
+                } ?: 1f
+                // A scale that leaves the size the same once rounded to whole pixels is no scale at all
+                val isScaled = (content.width() * scale).roundToInt() < content.width() ||
+                        (content.height() * scale).roundToInt() < content.height()
+                if (!isCropped && !isScaled && fileType == encoding.type) {
+                    // Already small enough and in the right format, re-encoding would only lose quality
+                    return@withContext fileType
+                }
+
+                val sampleSize = getSampleSize(content, scale)
+                val options = BitmapFactory.Options().apply { inSampleSize = sampleSize }
+                val sampled = if (isCropped) {
+                    regionDecoder!!.decodeRegion(content, options)
+                } else {
+                    BitmapFactory.decodeFile(partFile.path, options)
+                } ?: return@withContext fileType
+
+                val targetWidth = (content.width() * scale).roundToInt().coerceAtLeast(1)
+                val targetHeight = (content.height() * scale).roundToInt().coerceAtLeast(1)
+                val scaled = if (sampled.width > targetWidth) {
+                    Bitmap.createScaledBitmap(sampled, targetWidth, targetHeight, true).also {
+                        if (it !== sampled) {
+                            sampled.recycle()
+                        }
+                    }
+                } else {
+                    sampled
+                }
+                val output = flattenIfOpaqueFormat(scaled, encoding)
+
+                val outputFile = File(partFile.parentFile, partFile.name + ".ingest")
+                try {
+                    outputFile.outputStream().use { output.compress(encoding.format, encoding.quality, it) }
+                    partial.replaceContent(outputFile, encoding.type)
+                    Log.d(
+                        LOG_TAG,
+                        "${bounds.outWidth}x${bounds.outHeight} $fileType -> cropped to $content, " +
+                                "${output.width}x${output.height} ${encoding.type} (inSampleSize $sampleSize), " +
+                                "${partFile.length()} bytes in ${SystemClock.elapsedRealtime() - startTime}ms"
+                    )
+                } finally {
+                    // Already renamed away if replacing succeeded
+                    outputFile.delete()
+                    output.recycle()
+                }
+                encoding.type
+            } finally {
+                regionDecoder?.recycle()
+            }
+        }
+    }
+
+    // Formats the region decoder doesn't support, like GIF, are simply not cropped
+    private fun openRegionDecoder(partFile: File): BitmapRegionDecoder? =
+        try {
+            newRegionDecoder(partFile.path)
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Cannot crop ${partFile.name}: ${e.message}")
+            null
+        }
+
+    private fun findContent(regionDecoder: BitmapRegionDecoder): Rect? {
+        val startTime = SystemClock.elapsedRealtime()
+        return try {
+            BorderDetector.findContent(regionDecoder)
+        } catch (e: IllegalStateException) {
+            Log.w(LOG_TAG, "Border detection failed: ${e.message}")
+            null
+        }.also {
+            Log.d(LOG_TAG, "Border detection took ${SystemClock.elapsedRealtime() - startTime}ms, found $it")
+        }
+    }
+
+    // Largest power of two that still leaves the image at or above scale
+    // Raised further if the result would not comfortably fit in memory, as cropping alone keeps originals full size
+    private fun getSampleSize(content: Rect, scale: Float): Int {
+        val memoryBudget = Runtime.getRuntime().maxMemory() / 4
+        var sampleSize = 1
+        while (1f / (sampleSize * 2) >= scale) {
+            sampleSize *= 2
+        }
+        while (4L * (content.width() / sampleSize) * (content.height() / sampleSize) > memoryBudget) {
+            sampleSize *= 2
+        }
+        return sampleSize
+    }
+
+    // JPEG has no alpha channel, so transparent areas would otherwise come out black
+    private fun flattenIfOpaqueFormat(bitmap: Bitmap, encoding: Encoding): Bitmap {
+        if (encoding.format != Bitmap.CompressFormat.JPEG || !bitmap.hasAlpha()) {
+            return bitmap
+        }
+        val flattened = Bitmap.createBitmap(bitmap.width, bitmap.height, Bitmap.Config.ARGB_8888)
+        Canvas(flattened).apply {
+            drawColor(Color.WHITE)
+            drawBitmap(bitmap, 0f, 0f, null)
+        }
+        bitmap.recycle()
+        return flattened
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.network
+
+import com.antony.muzei.pixiv.provider.exceptions.CorruptFileException
+import com.antony.muzei.pixiv.provider.exceptions.ImageTooLargeException
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import okhttp3.Call
+import okhttp3.Response
+import okhttp3.ResponseBody
+import okio.BufferedSink
+import java.net.ProtocolException
+
+private const val COPY_SEGMENT_SIZE = 64 * 1024L
+
+/**
+ * Executes this call on [Dispatchers.IO] and passes the response to [block], closing it afterwards.
+ *
+ * Cancelling the calling coroutine at any point, including while [block] is still reading the body,
+ * cancels the call. OkHttp then closes the socket, so a thread blocked on a read is released immediately
+ * instead of the download running to completion.
+ *
+ * Call.execute() is used rather than enqueue(), as our interceptors throw checked exceptions
+ * which would otherwise crash the OkHttp dispatcher thread.
+ */
+suspend fun <T> Call.executeCancellable(block: suspend (Response) -> T): T = coroutineScope {
+    val call = this@executeCancellable
+    val canceller = launch(start = CoroutineStart.UNDISPATCHED) {
+        try {
+            awaitCancellation()
+        } finally {
+            // The canceller is also cancelled once the block completes normally
+            // Only touch the call if it was the caller that went away
+            if (!this@coroutineScope.isActive) {
+                call.cancel()
+            }
+        }
+    }
+    try {
+        withContext(Dispatchers.IO) {
+            call.execute().use { block(it) }
+        }
+    } finally {
+        canceller.cancel()
+    }
+}
+
+/**
+ * Streams this body into [sink], checking for cancellation between each segment.
+ * Closes both the body and the sink.
+ *
+ * Bytes are counted as they are written, and compared against the Content-Length the server declared,
+ * so at most one segment of the body is ever held in memory.
+ * A body that comes up short, or runs over, throws a [CorruptFileException]; what was written so far
+ * should be discarded by the caller.
+ * Writing stops with an [ImageTooLargeException] as soon as more than [maxLength] bytes have been received,
+ * so an oversized body that didn't declare its length is never read in full.
+ */
+suspend fun ResponseBody.writeTo(sink: BufferedSink, maxLength: Long = Long.MAX_VALUE) {
+    use { body ->
+        sink.use {
+            val declaredLength = body.contentLength()
+            val source = body.source()
+            var receivedLength = 0L
+            try {
+                while (true) {
+                    val read = source.read(it.buffer, COPY_SEGMENT_SIZE)
+                    if (read == -1L) {
+                        break
+                    }
+                    receivedLength += read
+                    if (receivedLength > maxLength) {
+                        throw ImageTooLargeException("Received more than $maxLength bytes", receivedLength)
+                    }
+                    it.emitCompleteSegments()
+                    currentCoroutineContext().ensureActive()
+                }
+            } catch (e: ProtocolException) {
+                // OkHttp reports a connection closed before Content-Length bytes arrived as "unexpected end of stream"
+                throw CorruptFileException("Received $receivedLength of $declaredLength bytes", e)
+            }
+            // -1 means the server did not declare a length, so there is nothing to check against
+            if (declaredLength != -1L && declaredLength != receivedLength) {
+                throw CorruptFileException("Received $receivedLength of $declaredLength bytes")
+            }
+        }
+    }
+}
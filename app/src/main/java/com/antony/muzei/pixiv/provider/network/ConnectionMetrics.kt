@@ -0,0 +1,66 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.network
+
+import okhttp3.Call
+import okhttp3.Connection
+import okhttp3.EventListener
+import okhttp3.Protocol
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/*
+ * Counts, per host, how many calls were given a connection and how many of those had to open a new one
+ * The difference is the number of calls that reused a pooled connection, e.g. every image after the first
+ * from i.pximg.net, and every feed page after the first from app-api.pixiv.net
+ *
+ * A single listener is shared by every client built from OkHttpSingleton, counted since process start
+ */
+object ConnectionMetrics : EventListener() {
+    private class HostCounts {
+        val acquired = AtomicInteger()
+        val connected = AtomicInteger()
+    }
+
+    private val counts = ConcurrentHashMap<String, HostCounts>()
+
+    private fun getCounts(call: Call): HostCounts =
+        counts.getOrPut(call.request().url.host) { HostCounts() }
+
+    // Called once per call, whether the connection is new or pooled
+    override fun connectionAcquired(call: Call, connection: Connection) {
+        getCounts(call).acquired.incrementAndGet()
+    }
+
+    // Only called when a new connection was actually established
+    override fun connectEnd(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy, protocol: Protocol?) {
+        getCounts(call).connected.incrementAndGet()
+    }
+
+    fun getAcquiredCount(host: String): Int = counts[host]?.acquired?.get() ?: 0
+    fun getNewConnectionCount(host: String): Int = counts[host]?.connected?.get() ?: 0
+    fun getReusedCount(host: String): Int = (getAcquiredCount(host) - getNewConnectionCount(host)).coerceAtLeast(0)
+
+    // One line per host, for logging at the end of a run
+    fun summarize(): String =
+        counts.keys.sorted().joinToString("\n") { host ->
+            "$host: ${getAcquiredCount(host)} calls, ${getNewConnectionCount(host)} new connections, " +
+                    "${getReusedCount(host)} reused"
+        }
+}
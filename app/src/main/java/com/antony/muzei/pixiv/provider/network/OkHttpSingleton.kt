@@ -2,9 +2,9 @@ package com.antony.muzei.pixiv.provider.network
 
 import android.annotation.SuppressLint
 import android.util.Log
-import androidx.preference.PreferenceManager
 import com.antony.muzei.pixiv.BuildConfig
 import com.antony.muzei.pixiv.PixivMuzei
+import com.antony.muzei.pixiv.provider.ProviderSettings
 import com.antony.muzei.pixiv.provider.network.interceptor.NetworkTrafficLogInterceptor
 import okhttp3.OkHttpClient
 import java.security.cert.X509Certificate
@@ -37,13 +37,15 @@ object OkHttpSingleton {
 
     private var instance: OkHttpClient? = null
 
+    // RestClient derives every purpose specific client from this one, so they all share its connection pool
+    @Synchronized
     fun getInstance(): OkHttpClient {
         if (instance == null) {
             instance = OkHttpClient.Builder()
                 .retryOnConnectionFailure(true)
+                .eventListener(ConnectionMetrics)
                 .apply {
-                    val prefs = PreferenceManager.getDefaultSharedPreferences(PixivMuzei.context!!.applicationContext)
-                    val enableNetworkBypass = prefs.getBoolean("pref_enableNetworkBypass", false)
+                    val enableNetworkBypass = ProviderSettings.get(PixivMuzei.context!!).enableNetworkBypass
                     Log.d(LOG_TAG,"network bypass was $enableNetworkBypass")
                     if (enableNetworkBypass) {
                         sslSocketFactory(RubySSLSocketFactory(), x509TrustManager)
@@ -57,6 +59,7 @@ object OkHttpSingleton {
         return instance as OkHttpClient
     }
 
+    @Synchronized
     fun refreshInstance(){
         // Through set it to null, the OkHttpClient will be create again and apply with new preference when `getInstance` was invoked.
         instance = null
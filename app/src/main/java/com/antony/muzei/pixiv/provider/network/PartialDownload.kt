@@ -0,0 +1,208 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.network
+
+import android.util.Log
+import com.antony.muzei.pixiv.provider.exceptions.CorruptFileException
+import okhttp3.MediaType
+import okhttp3.MediaType.Companion.toMediaTypeOrNull
+import okhttp3.Response
+import okio.Source
+import okio.appendingSink
+import okio.buffer
+import okio.sink
+import java.io.File
+import java.io.IOException
+import java.util.Properties
+import java.util.concurrent.TimeUnit
+
+/**
+ * A download that is written to a `.part` file, alongside a small sidecar recording where it came from,
+ * the server's validator (ETag or Last-Modified) and the expected total length.
+ *
+ * If the download is interrupted, whatever was received is kept, and the next attempt asks the server
+ * for only the remaining bytes with a Range request. If-Range makes the server send the whole file instead
+ * should it have changed in the meantime.
+ * The part file only becomes the real image through [promoteTo], once every byte has arrived.
+ *
+ * Both files are hidden (dot prefixed), as on older devices they sit next to images in the user's gallery.
+ */
+class PartialDownload(directory: File, name: String) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_PARTIAL"
+
+        private const val KEY_URL = "url"
+        private const val KEY_VALIDATOR = "validator"
+        private const val KEY_LENGTH = "length"
+        private const val KEY_CONTENT_TYPE = "contentType"
+        private const val KEY_INGESTED = "ingested"
+
+        // Parts for artworks that were never retried are of no use to anyone
+        private val STALE_AGE_MILLIS = TimeUnit.DAYS.toMillis(1)
+
+        fun deleteStale(directory: File) {
+            val cutoff = System.currentTimeMillis() - STALE_AGE_MILLIS
+            directory.listFiles { file ->
+                file.name.startsWith(".") && (file.name.endsWith(".part") || file.name.endsWith(".part.meta"))
+            }?.forEach {
+                if (it.lastModified() < cutoff) {
+                    it.delete()
+                }
+            }
+        }
+    }
+
+    val partFile = File(directory, ".$name.part")
+    private val sidecarFile = File(directory, ".$name.part.meta")
+
+    private var sidecar: Properties? = readSidecar()
+
+    val contentType: MediaType?
+        get() = sidecar?.getProperty(KEY_CONTENT_TYPE)?.toMediaTypeOrNull()
+
+    // True once the part file has been replaced by its processed version, which must not be processed again
+    val isIngested: Boolean
+        get() = sidecar?.getProperty(KEY_INGESTED) == true.toString()
+
+    private val expectedLength: Long
+        get() = sidecar?.getProperty(KEY_LENGTH)?.toLongOrNull() ?: -1L
+
+    // True if an earlier attempt received every byte of url, but failed before the image was stored
+    fun isComplete(url: String): Boolean =
+        sidecar?.getProperty(KEY_URL) == url && expectedLength > 0 && partFile.length() == expectedLength
+
+    // Headers that resume the download from where the last attempt left off, empty if there is nothing to resume
+    fun getResumeHeaders(url: String): Map<String, String> {
+        val properties = sidecar ?: return emptyMap()
+        val validator = properties.getProperty(KEY_VALIDATOR)
+        val receivedLength = partFile.length()
+        if (properties.getProperty(KEY_URL) != url || validator == null || receivedLength == 0L) {
+            return emptyMap()
+        }
+        Log.d(LOG_TAG, "Resuming ${partFile.name} from byte $receivedLength")
+        return mapOf("Range" to "bytes=$receivedLength-", "If-Range" to validator)
+    }
+
+    // Size of the whole file, not just of what this response will send, or -1 if the server didn't say
+    fun getTotalLength(response: Response): Long =
+        if (response.code == 206) {
+            // Content-Range: bytes <first>-<last>/<total>
+            response.header("Content-Range")?.substringAfterLast('/')?.toLongOrNull() ?: -1L
+        } else {
+            response.body.contentLength()
+        }
+
+    /**
+     * Streams the body of [response] into the part file.
+     * A 206 is appended to what we already have, anything else starts the file over.
+     * On failure the bytes received so far are kept, unless they can no longer be trusted.
+     * The part file is never allowed to grow beyond [maxLength] bytes.
+     */
+    suspend fun writeFrom(url: String, response: Response, maxLength: Long = Long.MAX_VALUE) {
+        val body = response.body
+        if (response.code == 206) {
+            // Content-Range: bytes <first>-<last>/<total>
+            val firstByte = response.header("Content-Range")
+                ?.substringAfter("bytes ")
+                ?.substringBefore('-')
+                ?.toLongOrNull()
+            if (firstByte != partFile.length()) {
+                discard()
+                throw CorruptFileException("Server resumed at byte $firstByte, have ${partFile.length()}")
+            }
+            body.writeTo(partFile.appendingSink().buffer(), maxLength - partFile.length())
+        } else {
+            writeSidecar(url, getValidator(response), body.contentLength(), body.contentType())
+            body.writeTo(partFile.sink().buffer(), maxLength)
+        }
+
+        if (expectedLength != -1L && partFile.length() != expectedLength) {
+            discard()
+            throw CorruptFileException("Part file is ${partFile.length()} bytes, expected $expectedLength")
+        }
+    }
+
+    // Moves the completed part file into place
+    // Both are in the same directory, so this is an atomic rename and no one ever sees a partial image
+    fun promoteTo(file: File) {
+        if (!partFile.renameTo(file)) {
+            throw IOException("Could not move ${partFile.name} to ${file.name}")
+        }
+        sidecarFile.delete()
+        sidecar = null
+    }
+
+    // Fills the part file from a copy of the image we already have, instead of from the network
+    // origin takes the place of the url, the part is complete as soon as this returns
+    fun copyFrom(origin: String, source: Source, contentType: MediaType?) {
+        partFile.sink().buffer().use { it.writeAll(source) }
+        writeSidecar(origin, null, partFile.length(), contentType)
+    }
+
+    // Swaps the completed part file for a processed version of it, e.g. one that was scaled down
+    // The part stays complete, so an interrupted attempt to store it picks up the processed file
+    fun replaceContent(file: File, contentType: MediaType) {
+        val url = sidecar?.getProperty(KEY_URL) ?: throw IOException("${partFile.name} has no sidecar")
+        if (!file.renameTo(partFile)) {
+            throw IOException("Could not move ${file.name} to ${partFile.name}")
+        }
+        // Nothing left to resume, so no validator
+        writeSidecar(url, null, partFile.length(), contentType, ingested = true)
+    }
+
+    fun discard() {
+        partFile.delete()
+        sidecarFile.delete()
+        sidecar = null
+    }
+
+    // Only a strong ETag can be used with If-Range, otherwise fall back to Last-Modified
+    private fun getValidator(response: Response): String? =
+        response.header("ETag")?.takeUnless { it.startsWith("W/") }
+            ?: response.header("Last-Modified")
+
+    private fun readSidecar(): Properties? {
+        if (!sidecarFile.exists() || !partFile.exists()) {
+            return null
+        }
+        return try {
+            Properties().apply { sidecarFile.inputStream().use { load(it) } }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun writeSidecar(
+        url: String,
+        validator: String?,
+        length: Long,
+        contentType: MediaType?,
+        ingested: Boolean = false
+    ) {
+        val properties = Properties().apply {
+            setProperty(KEY_URL, url)
+            validator?.let { setProperty(KEY_VALIDATOR, it) }
+            setProperty(KEY_LENGTH, length.toString())
+            contentType?.let { setProperty(KEY_CONTENT_TYPE, it.toString()) }
+            if (ingested) {
+                setProperty(KEY_INGESTED, true.toString())
+            }
+        }
+        sidecarFile.outputStream().use { properties.store(it, null) }
+        sidecar = properties
+    }
+}
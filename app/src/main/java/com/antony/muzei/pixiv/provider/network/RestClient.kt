@@ -23,79 +23,112 @@ import com.antony.muzei.pixiv.PixivProviderConst.PIXIV_RANKING_URL
 import com.antony.muzei.pixiv.provider.network.interceptor.PixivAuthHeaderInterceptor
 import com.antony.muzei.pixiv.provider.network.interceptor.StandardAuthHttpHeaderInterceptor
 import com.antony.muzei.pixiv.provider.network.interceptor.StandardImageHttpHeaderInterceptor
+import com.squareup.moshi.Moshi
 import okhttp3.Interceptor
+import okhttp3.OkHttpClient
 import retrofit2.Retrofit
 import retrofit2.converter.moshi.MoshiConverterFactory
 
+/*
+ * Registry of the clients and services used to talk to Pixiv
+ *
+ * Each is built once, on first use, from OkHttpSingleton's client, so they all share one connection pool and
+ * dispatcher; a connection opened to app-api.pixiv.net or i.pximg.net by one caller is reused by the next
+ * Everything is rebuilt once OkHttpSingleton.refreshInstance() has been called, e.g. when network bypass is toggled
+ * ConnectionMetrics shows how often connections were actually reused
+ */
 object RestClient {
-    private val okHttpClientAuthBuilder
-        get() = OkHttpSingleton.getInstance().newBuilder()
-            .apply {
-                addInterceptor(PixivAuthHeaderInterceptor())
-                addInterceptor(StandardAuthHttpHeaderInterceptor())
-            }
+    private val converterFactory = MoshiConverterFactory.create(Moshi.Builder().build())
 
-    // Used for acquiring Ranking JSON
-    fun getRetrofitRankingInstance(): Retrofit {
-        val okHttpClientRanking =
-            OkHttpSingleton.getInstance().newBuilder() // Debug logging interceptor
-                .addInterceptor(Interceptor { chain: Interceptor.Chain ->
-                    val original = chain.request()
-                    val originalHttpUrl = original.url
-                    val url = originalHttpUrl.newBuilder()
-                        .addQueryParameter("format", "json")
+    private class Clients(val base: OkHttpClient) {
+        val auth: OkHttpClient = base.newBuilder()
+            .addInterceptor(PixivAuthHeaderInterceptor())
+            .addInterceptor(StandardAuthHttpHeaderInterceptor())
+            .build()
+
+        val ranking: OkHttpClient = base.newBuilder()
+            .addInterceptor(Interceptor { chain: Interceptor.Chain ->
+                val original = chain.request()
+                val originalHttpUrl = original.url
+                val url = originalHttpUrl.newBuilder()
+                    .addQueryParameter("format", "json")
+                    .build()
+                val request =
+                    original.newBuilder() // Using the Android User-Agent returns a HTML of the ranking page, instead of the JSON I need
+                        .header("Referer", PIXIV_RANKING_URL)
+                        .url(url)
                         .build()
-                    val request =
-                        original.newBuilder() // Using the Android User-Agent returns a HTML of the ranking page, instead of the JSON I need
-                            .header("Referer", PIXIV_RANKING_URL)
-                            .url(url)
-                            .build()
-                    chain.proceed(request)
-                })
-                .build()
-        return Retrofit.Builder()
-            .client(okHttpClientRanking)
-            .baseUrl(PIXIV_RANKING_URL)
-            .addConverterFactory(MoshiConverterFactory.create())
+                chain.proceed(request)
+            })
             .build()
-    }
 
-    // Used for acquiring auth feed mode JSON
-    fun getRetrofitAuthInstance(): Retrofit {
-        return Retrofit.Builder()
-            .client(okHttpClientAuthBuilder.build())
-            .baseUrl(PIXIV_API_HOST_URL)
-            .addConverterFactory(MoshiConverterFactory.create())
+        val image: OkHttpClient = base.newBuilder()
+            .addInterceptor(StandardImageHttpHeaderInterceptor())
             .build()
+
+        val rankingRetrofit: Retrofit by lazy { createRetrofit(ranking, PIXIV_RANKING_URL) }
+        val authRetrofit: Retrofit by lazy { createRetrofit(auth, PIXIV_API_HOST_URL) }
+        val bookmarkRetrofit: Retrofit by lazy {
+            Retrofit.Builder()
+                .client(base)
+                .baseUrl(PIXIV_API_HOST_URL)
+                .build()
+        }
+        val imageRetrofit: Retrofit by lazy { createRetrofit(image, PIXIV_IMAGE_URL) }
+        val oauthRetrofit: Retrofit by lazy { createRetrofit(auth, OAUTH_URL) }
+
+        val rankingService: PixivRankingFeedJsonService by lazy {
+            rankingRetrofit.create(PixivRankingFeedJsonService::class.java)
+        }
+        val authFeedService: PixivAuthFeedJsonService by lazy {
+            authRetrofit.create(PixivAuthFeedJsonService::class.java)
+        }
+        val oauthService: PixivOauthService by lazy { oauthRetrofit.create(PixivOauthService::class.java) }
     }
 
-    // Used to add artworks to your list of bookmarks
-    fun getRetrofitBookmarkInstance(): Retrofit {
-        return Retrofit.Builder()
-            .client(OkHttpSingleton.getInstance())
-            .baseUrl(PIXIV_API_HOST_URL)
+    @Volatile
+    private var clients: Clients? = null
+
+    private fun createRetrofit(client: OkHttpClient, baseUrl: String): Retrofit =
+        Retrofit.Builder()
+            .client(client)
+            .baseUrl(baseUrl)
+            .addConverterFactory(converterFactory)
             .build()
+
+    // Rebuilt whenever OkHttpSingleton hands out a different client than the one ours were derived from
+    @Synchronized
+    private fun getClients(): Clients {
+        val base = OkHttpSingleton.getInstance()
+        return clients?.takeIf { it.base === base } ?: Clients(base).also { clients = it }
     }
 
+    // Adds the app's auth headers, for the app API and anything else that needs the access token
+    fun getAuthClient(): OkHttpClient = getClients().auth
+
+    // Adds the Referer i.pximg.net requires
+    fun getImageClient(): OkHttpClient = getClients().image
+
+    fun getRankingFeedService(): PixivRankingFeedJsonService = getClients().rankingService
+
+    fun getAuthFeedService(): PixivAuthFeedJsonService = getClients().authFeedService
+
+    @JvmStatic
+    fun getOauthService(): PixivOauthService = getClients().oauthService
+
+    // Used for acquiring Ranking JSON
+    fun getRetrofitRankingInstance(): Retrofit = getClients().rankingRetrofit
+
+    // Used for acquiring auth feed mode JSON
+    fun getRetrofitAuthInstance(): Retrofit = getClients().authRetrofit
+
+    // Used to add artworks to your list of bookmarks
+    fun getRetrofitBookmarkInstance(): Retrofit = getClients().bookmarkRetrofit
+
     // Downloads images from any source
-    fun getRetrofitImageInstance(): Retrofit {
-        val imageHttpClient = OkHttpSingleton.getInstance().newBuilder()
-            .addInterceptor(StandardImageHttpHeaderInterceptor())
-            .build()
-        return Retrofit.Builder()
-            .client(imageHttpClient)
-            .baseUrl(PIXIV_IMAGE_URL)
-            .addConverterFactory(MoshiConverterFactory.create())
-            .build()
-    }
+    fun getRetrofitImageInstance(): Retrofit = getClients().imageRetrofit
 
     // Used for getting an accessToken from a refresh token or username / password
     @JvmStatic
-    fun getRetrofitOauthInstance(): Retrofit {
-        return Retrofit.Builder()
-            .baseUrl(OAUTH_URL)
-            .client(okHttpClientAuthBuilder.build())
-            .addConverterFactory(MoshiConverterFactory.create())
-            .build()
-    }
+    fun getRetrofitOauthInstance(): Retrofit = getClients().oauthRetrofit
 }
@@ -17,17 +17,51 @@
 
 package com.antony.muzei.pixiv.provider.network;
 
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.antony.muzei.pixiv.PixivMuzei;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.Dns;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
-import okhttp3.dnsoverhttps.DnsOverHttps;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
 
 /*
 This class is called only when network bypass is enabled
+
+DoH stays authoritative. Its answers are kept for as long as their TTL allows
+Once an answer has expired it is still handed out for up to STALE_MILLIS, while a fresh one is resolved in the
+background, so only a host we have never resolved makes OkHttp wait
+The cache is also written to disk, so a cold start begins with the previous run's answers
+The system resolver is only asked once DoH has failed, and its answers are never cached, as they are the ones that
+may have been tampered with
  */
 public class RubyHttpDns implements Dns {
 
@@ -40,13 +74,51 @@ public class RubyHttpDns implements Dns {
      * 210.129.120.55 www.pixiv.net
      */
 
+    private static final String LOG_TAG = "ANTONY_DNS";
+
     private static RubyHttpDns sHttpDns = null;
-    private Dns dohDns;
 
     private static final String DOH_URL = "https://1.0.0.1/dns-query";
+    private static final String CACHE_FILE_NAME = "dns_cache.json";
+    private static final int TYPE_A = 1;
+
+    // Some answers come with a TTL of a few seconds, which would have us resolving on nearly every connection
+    private static final long MIN_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    // Pixiv's addresses rarely change, an answer well past its TTL is still far more likely to work than not
+    private static final long STALE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long LOOKUP_TIMEOUT_SECONDS = 10;
+
+    private static final class Entry {
+        final List<InetAddress> addresses;
+        final long expiresTime;
+
+        Entry(List<InetAddress> addresses, long expiresTime) {
+            this.addresses = addresses;
+            this.expiresTime = expiresTime;
+        }
+    }
+
+    // DoH is queried by IP, so this client needs neither our Dns nor our SSLSocketFactory
+    private final OkHttpClient dohClient;
+    // Threads are only alive while a lookup is in flight
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "RubyHttpDns");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    // Hosts with a background refresh in flight, so each is only refreshed once at a time
+    private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile boolean diskCacheLoaded = false;
+
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger staleCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
     private RubyHttpDns() {
-        dohDns = new DnsOverHttps.Builder().client(new OkHttpClient())
-                .url(HttpUrl.get(DOH_URL))
+        dohClient = new OkHttpClient.Builder()
+                .connectTimeout(LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)
                 .build();
     }
 
@@ -54,7 +126,7 @@ public class RubyHttpDns implements Dns {
     /*private static final String[] addresses = {"123.207.56.160", "123.207.252.208", "202.141.162.123",
             "40.73.101.101", "123.207.5.191", "210.129.120.45"};*/
 
-    public static RubyHttpDns getInstance() {
+    public static synchronized RubyHttpDns getInstance() {
         if (sHttpDns == null) {
             sHttpDns = new RubyHttpDns();
         }
@@ -95,19 +167,193 @@ public class RubyHttpDns implements Dns {
     210.129.120.56  fanbox.pixiv.net
     #Pixiv End*/
 
-    public List<InetAddress> lookup(String paramString)
+    @NonNull
+    @Override
+    public List<InetAddress> lookup(@NonNull String paramString)
             throws UnknownHostException {
+        String queryName = paramString.endsWith("pixiv.net") ? "pixiv.net" : paramString;
+        loadDiskCache();
+
+        Entry entry = cache.get(queryName);
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.expiresTime) {
+            hitCount.incrementAndGet();
+            return entry.addresses;
+        }
+        if (entry != null && now < entry.expiresTime + STALE_MILLIS) {
+            staleCount.incrementAndGet();
+            refreshInBackground(queryName);
+            return entry.addresses;
+        }
+        missCount.incrementAndGet();
         try {
-            if (paramString.endsWith("pixiv.net")) {
-                return dohDns.lookup("pixiv.net");
-            } else {
-                return dohDns.lookup(paramString);
-            }
-        } catch (Exception localException) {
-            localException.printStackTrace();
+            return resolve(queryName);
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "DoH lookup failed for " + queryName + ", falling back to the system resolver", e);
         }
         return Dns.SYSTEM.lookup(paramString);
     }
+
+    // Counted since process start
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    public int getStaleCount() {
+        return staleCount.get();
+    }
+
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    // Only DoH answers are cached, the system resolver's may well be the poisoned ones we are here to get around
+    private List<InetAddress> resolve(String queryName) throws IOException {
+        Entry entry = lookupDoh(queryName);
+        if (entry.addresses.isEmpty()) {
+            throw new UnknownHostException("No A records for " + queryName);
+        }
+        store(queryName, entry);
+        return entry.addresses;
+    }
+
+    private void refreshInBackground(String queryName) {
+        if (!refreshing.add(queryName)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                resolve(queryName);
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Background refresh failed, keeping the stale answer for " + queryName, e);
+            } finally {
+                refreshing.remove(queryName);
+            }
+        });
+    }
+
+    // OkHttp's DnsOverHttps doesn't expose the TTL, so the JSON API is queried directly
+    private Entry lookupDoh(String queryName) throws IOException {
+        HttpUrl url = HttpUrl.get(DOH_URL).newBuilder()
+                .addQueryParameter("name", queryName)
+                .addQueryParameter("type", "A")
+                .build();
+        Request request = new Request.Builder()
+                .url(url)
+                .header("Accept", "application/dns-json")
+                .build();
+        try (Response response = dohClient.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("DoH query for " + queryName + " failed with " + response.code());
+            }
+            JSONArray answers = new JSONObject(response.body().string()).optJSONArray("Answer");
+            List<InetAddress> addresses = new ArrayList<>();
+            long ttlSeconds = Long.MAX_VALUE;
+            // Answers may also hold the CNAMEs that lead to the A records
+            for (int i = 0; answers != null && i < answers.length(); i++) {
+                JSONObject answer = answers.getJSONObject(i);
+                if (answer.optInt("type") != TYPE_A) {
+                    continue;
+                }
+                addresses.add(toInetAddress(queryName, answer.getString("data")));
+                ttlSeconds = Math.min(ttlSeconds, answer.optLong("TTL", 0));
+            }
+            // No A record leaves ttlSeconds at Long.MAX_VALUE, but then the answer is never stored
+            long ttlMillis = TimeUnit.SECONDS.toMillis(Math.min(ttlSeconds, TimeUnit.DAYS.toSeconds(1)));
+            return new Entry(addresses, System.currentTimeMillis() + Math.max(MIN_TTL_MILLIS, ttlMillis));
+        } catch (JSONException e) {
+            throw new IOException("Could not read DoH answer for " + queryName, e);
+        }
+    }
+
+    // ip is always a literal address, so no lookup takes place here
+    private static InetAddress toInetAddress(String host, String ip) throws UnknownHostException {
+        return InetAddress.getByAddress(host, InetAddress.getByName(ip).getAddress());
+    }
+
+    private void store(String queryName, Entry entry) {
+        cache.put(queryName, entry);
+        executor.execute(this::saveDiskCache);
+    }
+
+    private static File getCacheFile() {
+        Context context = PixivMuzei.Companion.getContext();
+        return context != null ? new File(context.getCacheDir(), CACHE_FILE_NAME) : null;
+    }
+
+    // Entries resolved since process start take precedence over what was on disk
+    private void loadDiskCache() {
+        if (diskCacheLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!diskCacheLoaded) {
+                readDiskCache();
+                diskCacheLoaded = true;
+            }
+        }
+    }
+
+    private void readDiskCache() {
+        File file = getCacheFile();
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try {
+            JSONObject json;
+            try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+                json = new JSONObject(source.readUtf8());
+            }
+            Iterator<String> hosts = json.keys();
+            while (hosts.hasNext()) {
+                String host = hosts.next();
+                JSONObject stored = json.getJSONObject(host);
+                JSONArray ips = stored.getJSONArray("addresses");
+                List<InetAddress> addresses = new ArrayList<>(ips.length());
+                for (int i = 0; i < ips.length(); i++) {
+                    addresses.add(toInetAddress(host, ips.getString(i)));
+                }
+                cache.putIfAbsent(host, new Entry(addresses, stored.getLong("expiresTime")));
+            }
+            Log.d(LOG_TAG, "Loaded " + json.length() + " cached hosts");
+        } catch (IOException | JSONException e) {
+            Log.w(LOG_TAG, "Could not read the DNS cache, starting empty", e);
+        }
+    }
+
+    private synchronized void saveDiskCache() {
+        File file = getCacheFile();
+        if (file == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<String, Entry> cached : cache.entrySet()) {
+                Entry entry = cached.getValue();
+                // Anything this old is never handed out again
+                if (now >= entry.expiresTime + STALE_MILLIS) {
+                    continue;
+                }
+                JSONArray ips = new JSONArray();
+                for (InetAddress address : entry.addresses) {
+                    ips.put(address.getHostAddress());
+                }
+                json.put(cached.getKey(), new JSONObject()
+                        .put("addresses", ips)
+                        .put("expiresTime", entry.expiresTime));
+            }
+            File temp = new File(file.getPath() + ".tmp");
+            try (BufferedSink sink = Okio.buffer(Okio.sink(temp))) {
+                sink.writeUtf8(json.toString());
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(LOG_TAG, "Could not write the DNS cache", e);
+        }
+    }
     //private static final String[] addresses = {"210.140.131.147", "210.129.120.50", "210.140.92.135", "210.140.131.144", "210.129.120.46", "210.140.131.144"};
     //private static final String[] addresses = {"210.129.120.55", "210.129.120.44", "210.140.131.145", "210.140.131.160", "210.140.131.144"};
     //private static final String[] addresses = {"210.129.120.49", "210.140.131.146", "210.129.120.56", "210.129.120.44", "210.129.120.48"};
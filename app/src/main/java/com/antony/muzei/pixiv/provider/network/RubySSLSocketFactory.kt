@@ -16,56 +16,110 @@
  */
 package com.antony.muzei.pixiv.provider.network
 
+import android.os.SystemClock
 import android.util.Log
 import java.io.IOException
 import java.net.InetAddress
 import java.net.Socket
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import javax.net.ssl.SSLContext
 import javax.net.ssl.SSLSocket
 import javax.net.ssl.SSLSocketFactory
-import kotlin.jvm.internal.Intrinsics
 
 /**
  * @Author: Perol_Notsfsssf
  */
 // With contributions by CeuiLiSA
+/*
+ * TLS is layered straight over the socket OkHttp has already connected to the resolved IP, rather than closing it
+ * and connecting again
+ * The IP is given as the peer host, so no SNI naming the blocked host name is sent, and sessions are cached per IP
+ * All sockets come from one SSLContext, so its client session cache lets a new connection resume an earlier session
+ * instead of performing a full handshake
+ *
+ * The handshake has to be started here, before the socket is handed back to OkHttp
+ * On API 21-28 OkHttp configures the socket by calling Conscrypt's setHostname() with the URL's host, which would
+ * put the blocked host name back into SNI and also make it the session cache key
+ * Once the handshake is done those calls no longer affect anything, so SNI stays empty and sessions stay keyed by IP
+ * on every API level. The price is that ALPN is never offered, so bypass connections are always HTTP/1.1
+ */
 class RubySSLSocketFactory : SSLSocketFactory() {
+    companion object {
+        private const val LOG_TAG = "ANTONY_SSL"
+        private const val SESSION_CACHE_SIZE = 32
+
+        private val sslContext: SSLContext by lazy {
+            SSLContext.getInstance("TLS").apply {
+                init(null, null, null)
+                clientSessionContext.sessionCacheSize = SESSION_CACHE_SIZE
+                clientSessionContext.sessionTimeout = TimeUnit.HOURS.toSeconds(1).toInt()
+            }
+        }
+
+        private val handshakeCount = AtomicInteger()
+        private val resumedCount = AtomicInteger()
+        private val handshakeMillis = AtomicLong()
+
+        // Counted since process start
+        fun getHandshakeCount(): Int = handshakeCount.get()
+        fun getResumedCount(): Int = resumedCount.get()
+        fun getAverageHandshakeMillis(): Long =
+            handshakeCount.get().let { if (it == 0) 0 else handshakeMillis.get() / it }
+
+        fun summarize(): String =
+            "${getHandshakeCount()} handshakes, ${getResumedCount()} resumed, " +
+                    "${getAverageHandshakeMillis()} ms on average"
+    }
+
+    private val delegate: SSLSocketFactory
+        get() = sslContext.socketFactory
+
     @Throws(IOException::class)
     override fun createSocket(paramSocket: Socket?, host: String?, port: Int, autoClose: Boolean): Socket {
         val inetAddress = paramSocket!!.inetAddress
-        Log.d("ANTONY_SSL", "Connecting with " + inetAddress.hostAddress)
-        if (autoClose) {
-            paramSocket.close()
-        }
-        val sslSocket = (getDefault().createSocket(inetAddress, port) as SSLSocket).apply { enabledProtocols = supportedProtocols }
-        val sslSession = sslSocket.session
+        val sslSocket = delegate.createSocket(paramSocket, inetAddress.hostAddress, port, autoClose) as SSLSocket
+        sslSocket.enabledProtocols = sslSocket.supportedProtocols
 
-        Log.i("ANTONY_SSL", "Setting SNI hostname")
-        val stringBuilder = StringBuilder().apply {
-            append("Established ")
-            append(sslSession.protocol)
-            append(" connection with ")
-            append(sslSession.peerHost)
-            append(" using ")
-            append(sslSession.cipherSuite)
+        val startTime = SystemClock.elapsedRealtime()
+        val startWallTime = System.currentTimeMillis()
+        try {
+            sslSocket.startHandshake()
+        } catch (e: IOException) {
+            sslSocket.close()
+            throw e
         }
-        Log.d("ANTONY_SSL", stringBuilder.toString())
-
+        val elapsed = SystemClock.elapsedRealtime() - startTime
+        handshakeCount.incrementAndGet()
+        handshakeMillis.addAndGet(elapsed)
+        // A resumed session keeps the creation time of the handshake that established it
+        val session = sslSocket.session
+        val resumed = session.creationTime < startWallTime
+        if (resumed) {
+            resumedCount.incrementAndGet()
+        }
+        Log.d(
+            LOG_TAG,
+            "${session.protocol} with ${inetAddress.hostAddress} for $host in $elapsed ms" +
+                    if (resumed) ", resumed" else ""
+        )
         return sslSocket
     }
 
-    override fun createSocket(paramString: String?, paramInt: Int): Socket? = null
+    override fun createSocket(paramString: String?, paramInt: Int): Socket? =
+        delegate.createSocket(paramString, paramInt)
 
-    override fun createSocket(paramString: String?, paramInt1: Int, paramInetAddress: InetAddress?, paramInt2: Int): Socket? = null
+    override fun createSocket(paramString: String?, paramInt1: Int, paramInetAddress: InetAddress?, paramInt2: Int): Socket? =
+        delegate.createSocket(paramString, paramInt1, paramInetAddress, paramInt2)
 
-    override fun createSocket(paramInetAddress: InetAddress?, paramInt: Int): Socket? = null
+    override fun createSocket(paramInetAddress: InetAddress?, paramInt: Int): Socket? =
+        delegate.createSocket(paramInetAddress, paramInt)
 
-    override fun createSocket(paramInetAddress1: InetAddress?, paramInt1: Int, paramInetAddress2: InetAddress?, paramInt2: Int): Socket? = null
+    override fun createSocket(paramInetAddress1: InetAddress?, paramInt1: Int, paramInetAddress2: InetAddress?, paramInt2: Int): Socket? =
+        delegate.createSocket(paramInetAddress1, paramInt1, paramInetAddress2, paramInt2)
 
-    override fun getDefaultCipherSuites(): Array<String> {
-        return arrayOf()
-    }
+    override fun getDefaultCipherSuites(): Array<String> = delegate.defaultCipherSuites
 
-    override fun getSupportedCipherSuites(): Array<String> {
-        return arrayOf()
-    }
+    override fun getSupportedCipherSuites(): Array<String> = delegate.supportedCipherSuites
 }
@@ -18,28 +18,20 @@ package com.antony.muzei.pixiv.provider.network.moshi
 
 import com.squareup.moshi.JsonClass
 
+// Trimmed down to what filtering and building the Artwork need, see Contents
+// caption, tags and tools in particular can be large, and are now skipped without being decoded
 @JsonClass(generateAdapter = true)
 data class AuthArtwork(
-    val caption: String,
-    val create_date: String,
     val height: Int,
     val id: Int,
     val image_urls: Image_Urls,
-    val is_bookmarked: Boolean,
-    val is_muted: Boolean,
     val meta_pages: List<Meta_Pages>,
     val meta_single_page: Meta_Single_Page,
-    val page_count: Int,
-    val restrict: Int,
     val sanity_level: Int,
-    val tags: List<Tags>,
     val title: String,
-    val tools: List<String>,
-    val total_bookmarks: Int,
     val total_view: Int,
     val type: String,
     val user: Artist,
-    val visible: Boolean,
     val width: Int,
     val x_restrict: Int
 )
@@ -60,12 +52,8 @@ data class Meta_Pages(
 @JsonClass(generateAdapter = true)
 data class Meta_Single_Page(val original_image_url: String?)
 
-@JsonClass(generateAdapter = true)
-data class Tags(val name: String)
-
 @JsonClass(generateAdapter = true)
 data class Artist(
-    val account: String,
     val id: Int,
     val name: String
 )
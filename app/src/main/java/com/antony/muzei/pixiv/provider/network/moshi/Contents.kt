@@ -19,14 +19,12 @@ package com.antony.muzei.pixiv.provider.network.moshi
 import com.squareup.moshi.Json
 import com.squareup.moshi.JsonClass
 
+// Only the fields that are actually read are declared
+// The generated adapter skips over anything else without decoding it
 @JsonClass(generateAdapter = true)
 data class Contents(
-    val content: String,
     @Json(name = "contents") val artworks: List<RankingArtwork>,
     val date: String,
     val mode: String,
-    val next: Int,
-    val page: Int,
-    val prev_date: String,
-    val rank_total: Int
+    val prev_date: String
 )
@@ -18,43 +18,26 @@ package com.antony.muzei.pixiv.provider.network.moshi
 
 import com.squareup.moshi.JsonClass
 
+// Trimmed down to what filtering and building the Artwork need, see Contents
 @JsonClass(generateAdapter = true)
 data class RankingArtwork(
-    val attr: String,
-    val date: String,
     val height: Int,
-    val illust_book_style: Int,
     val illust_content_type: Illust_Content_Type,
     val illust_id: Int,
-    val illust_page_count: Int,
+    // Sent as a string, Moshi reads it as a number all the same
+    // Pages cached before this was read don't have it
+    val illust_page_count: Int = 1,
     val illust_type: Int,
-    val illust_upload_timestamp: Int,
-    val profile_img: String,
     val rank: Int,
-    val rating_count: Int,
-    val tags: List<String>,
     val title: String,
     val url: String,
     val user_id: Int,
     val user_name: String,
     val view_count: Int,
-    val width: Int,
-    val yes_rank: Int
+    val width: Int
 )
 
 @JsonClass(generateAdapter = true)
 data class Illust_Content_Type(
-    val antisocial: Boolean,
-    val bl: Boolean,
-    val drug: Boolean,
-    val furry: Boolean,
-    val grotesque: Boolean,
-    val homosexual: Boolean,
-    val lo: Boolean,
-    val original: Boolean,
-    val religion: Boolean,
-    val sexual: Int,
-    val thoughts: Boolean,
-    val violent: Boolean,
-    val yuri: Boolean,
+    val sexual: Int
 )
@@ -0,0 +1,110 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.resolution
+
+import android.app.WallpaperManager
+import android.content.Context
+import android.net.ConnectivityManager
+import android.util.Log
+import android.util.Size
+import com.antony.muzei.pixiv.provider.ProviderSettings
+
+/*
+ * The sizes pixiv serves every artwork at, besides the original
+ * All of them are JPEGs scaled down to fit within the given bounds, and are never scaled up
+ *
+ * Given any img-master URL of an artwork, like the ranking thumbnail
+ *  https://tc-pximg01.techorus-cdn.com/c/240x480/img-master/img/2020/02/19/00/00/39/79583564_p0_master1200.jpg
+ * the other sizes are found by swapping the part before /img/
+ */
+enum class ImageVariant(private val maxWidth: Int, private val maxHeight: Int, private val urlPrefix: String?) {
+    MEDIUM(540, 540, "https://i.pximg.net/c/540x540_70/img-master"),
+    LARGE(600, 1200, "https://i.pximg.net/c/600x1200_90/img-master"),
+    MASTER_1200(1200, 1200, "https://i.pximg.net/img-master"),
+    ORIGINAL(Int.MAX_VALUE, Int.MAX_VALUE, null);
+
+    // Fraction of the original's dimensions this variant is served at
+    fun getScale(width: Int, height: Int): Float =
+        minOf(1f, maxWidth.toFloat() / width, maxHeight.toFloat() / height)
+
+    // Returns null for ORIGINAL, as its extension has to be found separately,
+    // or if masterUrl is not in a form we recognise
+    fun getUrl(masterUrl: String): String? {
+        if (urlPrefix == null || !masterUrl.contains("_master1200.")) {
+            return null
+        }
+        val pathIndex = masterUrl.indexOf("/img/")
+        if (pathIndex == -1) {
+            return null
+        }
+        return urlPrefix + masterUrl.substring(pathIndex)
+    }
+}
+
+/*
+ * Picks the smallest image variant that still covers the wallpaper without being scaled up
+ *
+ * Muzei scales the artwork until it fills the wallpaper, so only the image's scale relative to the wallpaper
+ * matters, not its aspect ratio matching
+ * A phone rarely needs more than MASTER_1200, which is often an order of magnitude smaller than the original
+ * Created once per worker run
+ */
+class ResolutionPolicy private constructor(
+    val wallpaperSize: Size,
+    val alwaysOriginal: Boolean
+) {
+    fun select(width: Int, height: Int): ImageVariant {
+        if (alwaysOriginal || width <= 0 || height <= 0) {
+            return ImageVariant.ORIGINAL
+        }
+        // Scale the original must be displayed at to fill the wallpaper
+        // Any variant served at this scale or above is sharp enough
+        val requiredScale = maxOf(
+            wallpaperSize.width.toFloat() / width,
+            wallpaperSize.height.toFloat() / height
+        )
+        return ImageVariant.values().first { it.getScale(width, height) >= requiredScale }
+    }
+
+    companion object {
+        private const val LOG_TAG = "ANTONY_RESOLUTION"
+
+        fun create(context: Context, settings: ProviderSettings): ResolutionPolicy {
+            val alwaysOriginal = !settings.fitResolutionToScreen ||
+                    (settings.originalsOnUnmetered && !isActiveNetworkMetered(context))
+            return ResolutionPolicy(getWallpaperSize(context), alwaysOriginal).also {
+                Log.d(LOG_TAG, "Wallpaper size ${it.wallpaperSize}, always original: $alwaysOriginal")
+            }
+        }
+
+        // Size of the wallpaper in portrait orientation
+        // Launchers that scroll the wallpaper ask for one wider than the screen, so take whichever is larger
+        fun getWallpaperSize(context: Context): Size {
+            val displayMetrics = context.resources.displayMetrics
+            val screenWidth = minOf(displayMetrics.widthPixels, displayMetrics.heightPixels)
+            val screenHeight = maxOf(displayMetrics.widthPixels, displayMetrics.heightPixels)
+            val wallpaperManager = WallpaperManager.getInstance(context)
+            return Size(
+                maxOf(screenWidth, wallpaperManager.desiredMinimumWidth),
+                maxOf(screenHeight, wallpaperManager.desiredMinimumHeight)
+            )
+        }
+
+        private fun isActiveNetworkMetered(context: Context): Boolean =
+            (context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager).isActiveNetworkMetered
+    }
+}
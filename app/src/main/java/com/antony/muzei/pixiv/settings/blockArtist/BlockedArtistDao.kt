@@ -7,8 +7,8 @@ import androidx.room.Query
 
 @Dao
 interface BlockedArtistDao {
-    @Query("SELECT EXISTS(SELECT * FROM BlockArtistEntity WHERE artistId = (:artistId))")
-    fun isRowIsExist(artistId: Int): Boolean
+    @Query("SELECT artistId FROM BlockArtistEntity")
+    fun getAllBlockedArtistIds(): List<String>
 
     @Insert(onConflict = OnConflictStrategy.ABORT)
     fun insertBlockedArtistId(blockedArtistIds: List<BlockArtistEntity>)
@@ -31,6 +31,8 @@ import androidx.recyclerview.widget.RecyclerView
 import com.antony.muzei.pixiv.AppDatabase
 import com.antony.muzei.pixiv.BuildConfig
 import com.antony.muzei.pixiv.R
+import com.antony.muzei.pixiv.provider.ArtworkToken
+import com.antony.muzei.pixiv.provider.ExcludedIdIndex
 import com.antony.muzei.pixiv.provider.PixivArtProvider
 import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.api.provider.ProviderContract.Artwork.TOKEN
@@ -96,7 +98,9 @@ class ArtworkDeletionFragment : Fragment() {
                 operations.add(operation)
 
                 // Used to remember which artworks have been deleted, so we don't download them again
-                listOfDeletedIds.add(DeletedArtworkIdEntity(artworkItem.token))
+                // Any page of a multi-page artwork excludes the whole artwork
+                val illustId = ArtworkToken.getIllustId(artworkItem.token)?.toString() ?: artworkItem.token
+                listOfDeletedIds.add(DeletedArtworkIdEntity(illustId))
             }
             SELECTED_ITEMS.clear()
 
@@ -110,7 +114,8 @@ class ArtworkDeletionFragment : Fragment() {
 
             val appDatabase = AppDatabase.getInstance(context)
             CoroutineScope(Dispatchers.Main + SupervisorJob()).launch(Dispatchers.IO) {
-                appDatabase.deletedArtworkIdDao().insertDeletedArtworkId(listOfDeletedIds.toList())
+                appDatabase.deletedArtworkIdDao().insertDeletedArtworkId(listOfDeletedIds.distinct())
+                ExcludedIdIndex.addDeletedArtworks(listOfDeletedIds.map { it.artworkId })
             }
 
             // TODO also delete the files from the disk?
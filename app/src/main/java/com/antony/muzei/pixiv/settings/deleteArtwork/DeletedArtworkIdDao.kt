@@ -11,10 +11,10 @@ interface DeletedArtworkIdDao {
 //    @Query("SELECT * FROM DeletedArtworkIdEntity")
 //    fun getAll(): List<DeletedArtworkIdEntity>
 
-    // Returns true if the passed artworkId is present in the table
-    @Query("SELECT EXISTS(SELECT * FROM DeletedArtworkIdEntity WHERE artworkId = (:artworkId))")
-    fun isRowIsExist(artworkId : Int) : Boolean
+    @Query("SELECT artworkId FROM DeletedArtworkIdEntity")
+    fun getAllDeletedArtworkIds(): List<String>
 
-    @Insert(onConflict = OnConflictStrategy.ABORT)
+    // Pages of one artwork all share its id, which may well have been excluded already
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
     fun insertDeletedArtworkId(deletedArtworkIds: List<DeletedArtworkIdEntity>)
 }
@@ -17,7 +17,6 @@
 package com.antony.muzei.pixiv.settings.fragments
 
 import android.Manifest
-import android.annotation.SuppressLint
 import android.content.Context
 import android.content.pm.PackageManager
 import android.os.Build
@@ -27,12 +26,12 @@ import androidx.core.app.ActivityCompat
 import androidx.core.content.ContextCompat
 import androidx.preference.*
 import androidx.work.*
+import com.antony.muzei.pixiv.PixivMuzeiSupervisor
 import com.antony.muzei.pixiv.R
 import com.antony.muzei.pixiv.provider.ClearCacheWorker
 import com.antony.muzei.pixiv.provider.PixivArtWorker
+import com.antony.muzei.pixiv.provider.backlog.ArtworkBacklog
 import com.antony.muzei.pixiv.provider.network.OkHttpSingleton
-import java.text.SimpleDateFormat
-import java.util.*
 import java.util.concurrent.TimeUnit
 
 class AdvOptionsPreferenceFragment : PreferenceFragmentCompat() {
@@ -86,26 +85,18 @@ class AdvOptionsPreferenceFragment : PreferenceFragmentCompat() {
                 }
         }
 
-        // Switch that controls if the cache periodically auto clears itself
+        // Switch that controls if the stored artwork is kept within the cache quota
+        // Evicts only what is needed, least recently shown first, instead of clearing everything
         findPreference<SwitchPreference>("pref_autoClearMode")?.let {
-            it.onPreferenceChangeListener = Preference.OnPreferenceChangeListener { preference, newValue ->
+            it.onPreferenceChangeListener = Preference.OnPreferenceChangeListener { _, newValue ->
                 if (newValue as Boolean) {
-                    // Calculates the hours to midnight
-                    @SuppressLint("SimpleDateFormat") val simpleDateFormat = SimpleDateFormat("kk")
-                    val hoursToMidnight = 24 - simpleDateFormat.format(Date()).toInt()
-
-                    // Builds and submits the work request
-                    val constraints = Constraints.Builder()
-                        .setRequiredNetworkType(NetworkType.CONNECTED)
-                        .build()
+                    // Eviction is all local, so no network constraint
                     val request = PeriodicWorkRequest.Builder(
                         ClearCacheWorker::class.java,
                         24,
                         TimeUnit.HOURS
                     )
-                        .setInitialDelay(hoursToMidnight.toLong(), TimeUnit.HOURS)
                         .addTag("PIXIV_CACHE_AUTO")
-                        .setConstraints(constraints)
                         .build()
                     WorkManager.getInstance(requireContext())
                         .enqueueUniquePeriodicWork(
@@ -120,31 +111,39 @@ class AdvOptionsPreferenceFragment : PreferenceFragmentCompat() {
             }
         }
 
+        // Cache quota slider, in increments of 50MB
+        findPreference<SeekBarPreference>("prefSlider_cacheQuota")?.let {
+            it.updatesContinuously = true
+            it.summary = (sharedPrefs.getInt("prefSlider_cacheQuota", 10) * 50).toString() + "MB"
+            it.onPreferenceChangeListener =
+                Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any ->
+                    it.summary = (newValue as Int * 50).toString() + "MB"
+                    true
+                }
+        }
+
         // Maximum file size slider
-//        SeekBarPreference maximumFileSizeSliderPref = findPreference("prefSlider_maxFileSize");
-//        maximumFileSizeSliderPref.setUpdatesContinuously(true);
-//        int fileSizeSetting = sharedPrefs.getInt("prefSlider_maxFileSize", 0);
-//        if (fileSizeSetting == 0)
-//        {
-//            maximumFileSizeSliderPref.setSummary(getString(R.string.prefSummary_noFileSizeLimit));
-//        }
-//        else
-//        {
-//            maximumFileSizeSliderPref.setSummary(fileSizeSetting + "MB");
-//        }
-//
-//        maximumFileSizeSliderPref.setOnPreferenceChangeListener((((preference, newValue) ->
-//        {
-//            if ((int) newValue == 0)
-//            {
-//                maximumFileSizeSliderPref.setSummary(getString(R.string.prefSummary_noFileSizeLimit));
-//            }
-//            else
-//            {
-//                maximumFileSizeSliderPref.setSummary(newValue + "MB");
-//            }
-//            return true;
-//        })));
+        // Artworks larger than this are skipped, zero means no limit
+        findPreference<SeekBarPreference>("prefSlider_maxFileSize")?.let { slider ->
+            slider.updatesContinuously = true
+            slider.summary = getMaxFileSizeSummary(sharedPrefs.getInt("prefSlider_maxFileSize", 0))
+            slider.onPreferenceChangeListener =
+                Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any ->
+                    slider.summary = getMaxFileSizeSummary(newValue as Int)
+                    true
+                }
+        }
+
+        // Only lossy formats use this, PNG is always lossless
+        findPreference<SeekBarPreference>("prefSlider_ingestQuality")?.let {
+            it.updatesContinuously = true
+            it.summary = sharedPrefs.getInt("prefSlider_ingestQuality", 90).toString()
+            it.onPreferenceChangeListener =
+                Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any ->
+                    it.summary = (newValue as Int).toString()
+                    true
+                }
+        }
 
         // If more than one storage is detected to be mounted, display the preference that allows the user to
         //  select where to download pictures to
@@ -200,6 +199,37 @@ class AdvOptionsPreferenceFragment : PreferenceFragmentCompat() {
                 }
         }
 
+        // Caps how many of those artworks are downloaded in parallel
+        findPreference<SeekBarPreference>("prefSlider_maxConcurrentDownloads")?.let { slider ->
+            slider.updatesContinuously = true
+            slider.summary = sharedPrefs.getInt("prefSlider_maxConcurrentDownloads", 3).toString()
+            slider.onPreferenceChangeListener =
+                Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any? ->
+                    slider.summary = (newValue as Int).toString()
+                    true
+                }
+        }
+
+        // How many fully downloaded artworks to keep ready ahead of Muzei, zero disables the backlog
+        findPreference<SeekBarPreference>("prefSlider_backlogDepth")?.let { slider ->
+            slider.updatesContinuously = true
+            slider.summary = sharedPrefs.getInt("prefSlider_backlogDepth", 3).toString()
+            slider.onPreferenceChangeListener =
+                Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any? ->
+                    slider.summary = (newValue as Int).toString()
+                    rescheduleBacklogRefill()
+                    true
+                }
+        }
+
+        // The refill constraints are fixed when the work is enqueued, so it has to be replaced when they change
+        listOf("pref_backlogUnmeteredOnly", "pref_backlogChargingOnly").forEach { key ->
+            findPreference<SwitchPreference>(key)?.setOnPreferenceChangeListener { _, _ ->
+                rescheduleBacklogRefill()
+                true
+            }
+        }
+
         findPreference<SwitchPreference>("pref_enableNetworkBypass")?.let {
             it.setOnPreferenceChangeListener { _, _ ->
                 OkHttpSingleton.refreshInstance() // Renew a instance with sslSocketFactory by this
@@ -227,6 +257,21 @@ class AdvOptionsPreferenceFragment : PreferenceFragmentCompat() {
         }
     }
 
+    private fun getMaxFileSizeSummary(maxFileSize: Int): String =
+        if (maxFileSize == 0) {
+            getString(R.string.prefSummary_noFileSizeLimit)
+        } else {
+            getString(R.string.prefSummary_maxFileSize, maxFileSize)
+        }
+
+    // Change listeners are called before the new value is persisted, so wait until afterwards to read it
+    private fun rescheduleBacklogRefill() {
+        val context = requireContext().applicationContext
+        PixivMuzeiSupervisor.post {
+            ArtworkBacklog.enqueueRefill(context, ExistingWorkPolicy.REPLACE)
+        }
+    }
+
     private fun isMoreThanOneStorage(): Boolean {
         return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             MediaStore.getExternalVolumeNames(requireContext()).size > 1
@@ -29,6 +29,7 @@ import com.antony.muzei.pixiv.PixivProviderConst.PREFERENCE_PIXIV_ACCESS_TOKEN
 import com.antony.muzei.pixiv.R
 import com.antony.muzei.pixiv.login.LoginActivityWebview
 import com.antony.muzei.pixiv.provider.PixivArtWorker.Companion.enqueueLoad
+import com.antony.muzei.pixiv.provider.feedcache.FeedPageCache
 import com.google.android.material.snackbar.Snackbar
 import java.util.*
 
@@ -40,6 +41,8 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
     private lateinit var newTag: String
     private lateinit var oldArtist: String
     private lateinit var newArtist: String
+    private var oldIncludePrivate = false
+    private var newIncludePrivate = false
 
     override fun onCreatePreferences(savedInstanceState: Bundle?, rootKey: String?) {
         setPreferencesFromResource(R.xml.main_preference_layout, rootKey)
@@ -51,6 +54,7 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
         oldUpdateMode = sharedPrefs.getString("pref_updateMode", "daily") ?: "daily"
         oldTag = sharedPrefs.getString("pref_tagSearch", "") ?: ""
         oldArtist = sharedPrefs.getString("pref_artistId", "") ?: ""
+        oldIncludePrivate = sharedPrefs.getBoolean("pref_includePrivateBookmarks", false)
 
         // Ensures that the user has logged in first before selecting any update mode requiring authentication
         // Reveals UI elements as needed depending on Update Mode selection
@@ -80,6 +84,7 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
                 findPreference<Preference>("pref_tagSearch")?.isVisible = newValue == "tag_search"
                 findPreference<Preference>("pref_tagLanguage")?.isVisible = newValue == "tag_search"
                 findPreference<Preference>("pref_artistId")?.isVisible = newValue == "artist"
+                findPreference<Preference>("pref_includePrivateBookmarks")?.isVisible = newValue == "bookmark"
                 true
             }
 
@@ -160,6 +165,10 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
                 findPreference<Preference>("pref_artistId")?.let {
                     it.isVisible = true
                 }
+            } else if (updateMode == "bookmark") {
+                findPreference<Preference>("pref_includePrivateBookmarks")?.let {
+                    it.isVisible = true
+                }
             }
         } else {
             findPreference<Preference>("pref_rankingFilterSelect")?.isVisible = true
@@ -171,6 +180,7 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
                 WorkManager.getInstance(requireContext()).cancelUniqueWork("ANTONY")
                 requireContext().getExternalFilesDir(Environment.DIRECTORY_PICTURES)
                     ?.deleteRecursively()
+                FeedPageCache.clear(requireContext())
                 enqueueLoad(true, context)
                 Snackbar.make(
                     requireView(), R.string.toast_clearingCache,
@@ -255,11 +265,12 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
         newUpdateMode = sharedPrefs.getString("pref_updateMode", "") ?: ""
         newTag = sharedPrefs.getString("pref_tagSearch", "") ?: ""
         newArtist = sharedPrefs.getString("pref_artistId", "") ?: ""
+        newIncludePrivate = sharedPrefs.getBoolean("pref_includePrivateBookmarks", false)
 
         // If user has changed update, filter mode, or search tag:
         // Immediately stop any pending work, clear the Provider of any Artwork, and then toast
         if (oldUpdateMode != newUpdateMode || oldTag != newTag
-            || oldArtist != newArtist
+            || oldArtist != newArtist || oldIncludePrivate != newIncludePrivate
         ) {
             WorkManager.getInstance(requireContext()).cancelUniqueWork("ANTONY")
             requireContext().getExternalFilesDir(Environment.DIRECTORY_PICTURES)
@@ -1,13 +1,11 @@
 package com.antony.muzei.pixiv.util;
 
 
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.text.TextUtils;
 
-import androidx.preference.PreferenceManager;
-
 import com.antony.muzei.pixiv.PixivMuzei;
+import com.antony.muzei.pixiv.provider.ProviderSettings;
 
 import java.net.InetAddress;
 import java.util.List;
@@ -40,18 +38,14 @@ public class HostManager {
     public String replaceUrl(String before) {
         // See https://pixiv.cat/reverseproxy.html
         // Its ISP is Cloudflare
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(PixivMuzei.Companion.getContext().getApplicationContext());
-
-        boolean usePixivCatProxy = false;
-        String pixivProxyHost = "";
-
-        if(PixivMuzei.Companion.getContext() != null){
-            usePixivCatProxy = prefs.getBoolean("pref_usePixivCat",false);
+        // Settings come from the cached snapshot, as this is called for every URL we download
+        ProviderSettings settings = null;
+        if (PixivMuzei.Companion.getContext() != null) {
+            settings = ProviderSettings.get(PixivMuzei.Companion.getContext());
         }
 
-        if (usePixivCatProxy) {
-            pixivProxyHost = prefs.getString("pref_pixivProxyHost", HOST_NEW);
-            return before.replace(HOST_OLD, pixivProxyHost);
+        if (settings != null && settings.getUsePixivCat()) {
+            return before.replace(HOST_OLD, settings.getPixivProxyHost());
         } else {
             return resizeUrl(before);
         }
@@ -0,0 +1,116 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.util
+
+/**
+ * A set of ints backed by a single open addressing [IntArray].
+ *
+ * Unlike a HashSet<Int>, neither [add] nor [contains] box their argument, so looking up
+ * illust and artist ids while filtering a page of candidates doesn't allocate.
+ * Removal is not supported, as none of the sets we keep ever shrink.
+ *
+ * Not thread safe.
+ */
+class IntHashSet(expectedSize: Int = 16) {
+    // Zero marks an empty slot, so zero itself is tracked separately
+    private var slots = IntArray(capacityFor(expectedSize))
+    private var containsZero = false
+
+    var size = 0
+        private set
+
+    fun contains(value: Int): Boolean {
+        if (value == 0) {
+            return containsZero
+        }
+        val mask = slots.size - 1
+        var index = mix(value) and mask
+        while (true) {
+            val slot = slots[index]
+            if (slot == value) {
+                return true
+            }
+            if (slot == 0) {
+                return false
+            }
+            index = (index + 1) and mask
+        }
+    }
+
+    // Returns true if value was not already present
+    fun add(value: Int): Boolean {
+        if (value == 0) {
+            if (containsZero) {
+                return false
+            }
+            containsZero = true
+            size++
+            return true
+        }
+        if (!insert(slots, value)) {
+            return false
+        }
+        size++
+        // Keep the load factor at or below one half, so probe sequences stay short
+        if (size * 2 > slots.size) {
+            rehash(slots.size * 2)
+        }
+        return true
+    }
+
+    private fun rehash(newCapacity: Int) {
+        val newSlots = IntArray(newCapacity)
+        for (value in slots) {
+            if (value != 0) {
+                insert(newSlots, value)
+            }
+        }
+        slots = newSlots
+    }
+
+    private companion object {
+        fun capacityFor(expectedSize: Int): Int {
+            var capacity = 16
+            while (capacity < expectedSize * 2) {
+                capacity = capacity shl 1
+            }
+            return capacity
+        }
+
+        // Ids are mostly sequential, so spread them out before masking
+        fun mix(value: Int): Int {
+            val h = value * -0x61c88647
+            return h xor (h ushr 16)
+        }
+
+        fun insert(slots: IntArray, value: Int): Boolean {
+            val mask = slots.size - 1
+            var index = mix(value) and mask
+            while (true) {
+                val slot = slots[index]
+                if (slot == value) {
+                    return false
+                }
+                if (slot == 0) {
+                    slots[index] = value
+                    return true
+                }
+                index = (index + 1) and mask
+            }
+        }
+    }
+}